@@ -15,24 +15,51 @@
  */
 package net.morrildl.health;
 
+import java.text.DateFormat;
+import java.util.Calendar;
+
+import android.app.DatePickerDialog;
+import android.app.TimePickerDialog;
 import android.os.Bundle;
 import android.view.View;
 import android.view.Window;
 import android.widget.Button;
+import android.widget.DatePicker;
 import android.widget.EditText;
+import android.widget.RadioGroup;
+import android.widget.TextView;
+import android.widget.TimePicker;
 
 /**
  * An Activity that collects a blood pressure reading.
  */
 public class BloodPressureTracker extends DataCollectorBaseActivity {
+	/** Instance state keys, so a back-dated time survives e.g. rotation. */
+	private static final String STATE_TIME_SET = "time_set";
+	private static final String STATE_READING_TIME = "reading_time";
+
+	/** The time the user set for the reading; only used if timeSet is true. */
+	private final Calendar readingTime = Calendar.getInstance();
+	private boolean timeSet = false;
+	private TextView timeLabel = null;
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		requestWindowFeature(Window.FEATURE_NO_TITLE);
-		setContentView(R.layout.bp_tracker);
+		Diagnostics.setContentView(this, R.layout.bp_tracker);
 
 		final EditText systolic = (EditText) findViewById(R.id.systolic);
 		final EditText diastolic = (EditText) findViewById(R.id.diastolic);
+		final RadioGroup context = (RadioGroup) findViewById(R.id.bp_context);
+		timeLabel = (TextView) findViewById(R.id.time_label);
+		if (savedInstanceState != null
+				&& savedInstanceState.getBoolean(STATE_TIME_SET)) {
+			readingTime.setTimeInMillis(savedInstanceState
+					.getLong(STATE_READING_TIME));
+			timeSet = true;
+			showReadingTime();
+		}
 
 		((Button) findViewById(R.id.save_button))
 				.setOnClickListener(new View.OnClickListener() {
@@ -42,8 +69,13 @@ public class BloodPressureTracker extends DataCollectorBaseActivity {
 									.getText().toString());
 							int diastolicInt = Integer.parseInt(diastolic
 									.getText().toString());
+							long created = timeSet ? readingTime
+									.getTimeInMillis() : System
+									.currentTimeMillis();
 							if (dbUtil.addBloodPressureRecord(systolicInt,
-									diastolicInt)) {
+									diastolicInt, getContext(context
+											.getCheckedRadioButtonId()),
+									created)) {
 								finish();
 							} else {
 								displayErrorDialog(R.string.bp_error, false);
@@ -54,6 +86,13 @@ public class BloodPressureTracker extends DataCollectorBaseActivity {
 					}
 				});
 
+		((Button) findViewById(R.id.time_button))
+				.setOnClickListener(new View.OnClickListener() {
+					public void onClick(View v) {
+						showDatePicker();
+					}
+				});
+
 		((Button) findViewById(R.id.cancel_button))
 				.setOnClickListener(new View.OnClickListener() {
 					public void onClick(View v) {
@@ -66,4 +105,62 @@ public class BloodPressureTracker extends DataCollectorBaseActivity {
 	protected void onResume() {
 		super.onResume();
 	}
+
+	@Override
+	protected void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		outState.putBoolean(STATE_TIME_SET, timeSet);
+		outState.putLong(STATE_READING_TIME, readingTime.getTimeInMillis());
+	}
+
+	/** Maps a context radio button to the matching DBUtil.BP_CONTEXT_*. */
+	private static int getContext(int radioButtonId) {
+		switch (radioButtonId) {
+		case R.id.context_resting:
+			return DBUtil.BP_CONTEXT_RESTING;
+		case R.id.context_active:
+			return DBUtil.BP_CONTEXT_ACTIVE;
+		case R.id.context_exercising:
+			return DBUtil.BP_CONTEXT_EXERCISING;
+		default:
+			return DBUtil.BP_CONTEXT_UNKNOWN;
+		}
+	}
+
+	/**
+	 * Lets the user back-date the reading: asks for the date, then the time of
+	 * day.
+	 */
+	private void showDatePicker() {
+		if (!timeSet) {
+			readingTime.setTimeInMillis(System.currentTimeMillis());
+		}
+		new DatePickerDialog(this, new DatePickerDialog.OnDateSetListener() {
+			public void onDateSet(DatePicker view, int year, int month, int day) {
+				readingTime.set(year, month, day);
+				showTimePicker();
+			}
+		}, readingTime.get(Calendar.YEAR), readingTime.get(Calendar.MONTH),
+				readingTime.get(Calendar.DAY_OF_MONTH)).show();
+	}
+
+	private void showTimePicker() {
+		new TimePickerDialog(this, new TimePickerDialog.OnTimeSetListener() {
+			public void onTimeSet(TimePicker view, int hour, int minute) {
+				readingTime.set(Calendar.HOUR_OF_DAY, hour);
+				readingTime.set(Calendar.MINUTE, minute);
+				readingTime.set(Calendar.SECOND, 0);
+				readingTime.set(Calendar.MILLISECOND, 0);
+				timeSet = true;
+				showReadingTime();
+			}
+		}, readingTime.get(Calendar.HOUR_OF_DAY), readingTime
+				.get(Calendar.MINUTE), false).show();
+	}
+
+	private void showReadingTime() {
+		timeLabel.setText(getString(R.string.bp_time_label, DateFormat
+				.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT)
+				.format(readingTime.getTime())));
+	}
 }
@@ -6,10 +6,12 @@ package net.morrildl.health;
  */
 public class ChartEncoder {
 	public static final String CHART_URI_BASE = "http://chart.apis.google.com/chart?";
-	public static final String[] CHART_MAPPING = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".split(".");
+	public static final String CHART_MAPPING = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
 
 	/**
 	 * Encodes an array of integers into a chartserver simple-format string, building in 10% headroom.
+	 * Each value is scaled from 0..max onto one of the 62 characters of CHART_MAPPING; negative values
+	 * mark missing data.
 	 * Returns a StringBuffer, since the caller is highly likely to be building up a URI out of StringBuffers
 	 * anyway.
 	 * @param data the array to be encoded
@@ -27,7 +29,9 @@ public class ChartEncoder {
 		StringBuffer sb = new StringBuffer("s:");
 		for (int val : data) {
 			if (val >= 0) { 
-				sb.append(val);
+				// scale to 0..61; val <= max, since max has headroom added
+				int index = max == 0 ? 0 : (int)((long)val * (CHART_MAPPING.length() - 1) / max);
+				sb.append(CHART_MAPPING.charAt(index));
 			} else {
 				sb.append("_"); // _ means data at this slot is missing
 			}
@@ -15,11 +15,27 @@
  */
 package net.morrildl.health;
 
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
+import android.util.Log;
 
 /**
  * A utility class providing convenient access to database operations. This
@@ -33,26 +49,158 @@ import android.database.sqlite.SQLiteOpenHelper;
  * takes place in this method. Note that weight records are stored in whole
  * units, to not encourage an unhealthy level of fixation on fractional weight
  * changes.
+ * 
+ * Raw readings older than a retention window can be folded into per-day
+ * aggregates (see {@link #compactOldRecords(long, int)}), so that the raw
+ * tables don't grow forever while charts still have a daily min/max/mean.
+ * Days are local days (see {@link #toDay(long)}), so that a late dinner counts
+ * toward the day it was eaten.
+ * 
+ * Storage can optionally be encrypted (see {@link #enableEncryption(char[])}).
+ * In that mode the value columns of each new row are NULL and the values are
+ * sealed into the row's 'sealed' column by a {@link FieldCipher} data key; the
+ * data keys themselves are stored wrapped by a key derived from the user's
+ * passphrase, and are only available after {@link #unlock(char[])}. Daily
+ * summaries and sketches are sealed the same way. What stays in the clear is
+ * when each reading was taken, what kind of reading it is, and which days
+ * have summaries or sketches.
  */
 public class DBUtil {
-	private static DBHelper dbHelper;
+	private final DBHelper dbHelper;
 	private static final String lock = "";
 
+	/** Blood pressure contexts: what the user was doing at the reading. */
+	public static final int BP_CONTEXT_UNKNOWN = 0, BP_CONTEXT_RESTING = 1,
+			BP_CONTEXT_ACTIVE = 2, BP_CONTEXT_EXERCISING = 3;
+
+	/** Milliseconds per day, the granularity of the daily_summary table. */
+	public static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Every time zone's offset is a whole number of quarter hours, so rows
+	 * grouped by quarter hour in SQL can be folded into local days in Java.
+	 */
+	private static final long QUARTER_HOUR_MILLIS = 15L * 60 * 1000;
+
+	/**
+	 * Records of the same kind with identical values created less than this
+	 * far apart are treated as duplicates.
+	 */
+	public static final long DEDUP_WINDOW_MILLIS = 10 * 1000;
+
+	/** How many recent record keys of each table are remembered in memory. */
+	private static final int RECENT_KEYS = 1024;
+
+	/** Outcomes of {@link #insertRecord(String, ContentValues)}. */
+	private static final int INSERTED = 0, DUPLICATE = 1, FAILED = 2;
+
+	/** PBKDF2 iteration count for newly derived passphrase keys. */
+	private static final int KDF_ITERATIONS = 10000;
+
+	/**
+	 * States of crypto_settings.reencrypt_state: nothing to do, a
+	 * {@link #reencrypt(int)} pass is unfinished, or the data key is to be
+	 * rotated (and everything re-sealed) at the next unlock.
+	 */
+	private static final int REENCRYPT_DONE = 0, REENCRYPT_PENDING = 1,
+			REENCRYPT_ROTATE = 2;
+
+	/** Default number of raw rows folded per compaction transaction. */
+	public static final int DEFAULT_COMPACTION_BATCH = 500;
+
+	/** Fraction of the file that must be free pages before it is vacuumed. */
+	private static final double VACUUM_FREE_FRACTION = 0.25;
+
+	/**
+	 * The raw reading tables, each followed by the value columns it holds.
+	 * Each value column is summarized under its own name as the daily_summary
+	 * metric, and the value columns are what gets sealed in encrypted mode.
+	 */
+	private static final String[][] RAW_TABLES = new String[][] {
+			{ "blood_pressure", "systolic", "diastolic" },
+			{ "weight", "weight" }, { "calories", "calories" },
+			{ "points", "points" }, };
+
+	/**
+	 * The raw tables whose value columns get a per-day {@link ValueSketch},
+	 * stored in daily_sketch under the column's name.
+	 */
+	private static final String[][] SKETCHED_TABLES = new String[][] {
+			{ "blood_pressure", "systolic", "diastolic" },
+			{ "weight", "weight" }, };
+
 	/**
 	 * Android SQLite helper class, for creating & upgrading DBs cleanly.
 	 */
 	private static class DBHelper extends SQLiteOpenHelper {
 		private static final String DATABASE_NAME = "net.morrildl.health";
-		private static final int DATABASE_VERSION = 1;
+		private static final int DATABASE_VERSION = 8;
 		private static final String[] CREATE_TABLES_V0 = new String[] {
 				"CREATE TABLE blood_pressure (_id INTEGER PRIMARY KEY, systolic INTEGER, diastolic INTEGER, created INTEGER);",
 				/* Note: weight is metric, in units of kg */
 				"CREATE TABLE weight (_id INTEGER PRIMARY KEY, weight INTEGER, created INTEGER);",
 				"CREATE TABLE calories (_id INTEGER PRIMARY KEY, calories INTEGER, created INTEGER);",
 				"CREATE TABLE points (_id INTEGER PRIMARY KEY, points INTEGER, created INTEGER);", };
+		private static final String[] CREATE_TABLES_V1 = new String[] {
+				/* Note: day is local days since the epoch, see DBUtil.toDay() */
+				"CREATE TABLE daily_summary (metric TEXT, day INTEGER, min INTEGER, max INTEGER, sum INTEGER, count INTEGER, PRIMARY KEY (metric, day));",
+				"CREATE INDEX blood_pressure_created ON blood_pressure (created);",
+				"CREATE INDEX weight_created ON weight (created);",
+				"CREATE INDEX calories_created ON calories (created);",
+				"CREATE INDEX points_created ON points (created);", };
+		private static final String[] CREATE_TABLES_V2 = new String[] {
+				/* Note: record_key is NULL for rows written before version 3 */
+				"ALTER TABLE blood_pressure ADD COLUMN record_key TEXT;",
+				"ALTER TABLE weight ADD COLUMN record_key TEXT;",
+				"ALTER TABLE calories ADD COLUMN record_key TEXT;",
+				"ALTER TABLE points ADD COLUMN record_key TEXT;",
+				"CREATE UNIQUE INDEX blood_pressure_record_key ON blood_pressure (record_key);",
+				"CREATE UNIQUE INDEX weight_record_key ON weight (record_key);",
+				"CREATE UNIQUE INDEX calories_record_key ON calories (record_key);",
+				"CREATE UNIQUE INDEX points_record_key ON points (record_key);", };
+		private static final String[] CREATE_TABLES_V3 = new String[] {
+				/* Note: sealed rows have NULL value columns; key_id names the data key */
+				"ALTER TABLE blood_pressure ADD COLUMN sealed BLOB;",
+				"ALTER TABLE blood_pressure ADD COLUMN key_id INTEGER;",
+				"ALTER TABLE weight ADD COLUMN sealed BLOB;",
+				"ALTER TABLE weight ADD COLUMN key_id INTEGER;",
+				"ALTER TABLE calories ADD COLUMN sealed BLOB;",
+				"ALTER TABLE calories ADD COLUMN key_id INTEGER;",
+				"ALTER TABLE points ADD COLUMN sealed BLOB;",
+				"ALTER TABLE points ADD COLUMN key_id INTEGER;",
+				/* at most one row; present iff encryption is enabled */
+				"CREATE TABLE crypto_settings (salt BLOB, iterations INTEGER);",
+				/* data keys, wrapped by the passphrase key; the newest is active */
+				"CREATE TABLE crypto_keys (key_id INTEGER PRIMARY KEY, wrapped BLOB);", };
+		private static final String[] CREATE_TABLES_V4 = new String[] {
+				/* Note: context is one of the BP_CONTEXT_* constants */
+				"ALTER TABLE blood_pressure ADD COLUMN context INTEGER NOT NULL DEFAULT 0;",
+				/* covers per-context range queries over plain rows */
+				"CREATE INDEX blood_pressure_context ON blood_pressure (context, created, key_id, systolic, diastolic);",
+				/* all-time per-context totals, kept up to date on insert; empty when encrypted */
+				"CREATE TABLE bp_context_stats (context INTEGER PRIMARY KEY, count INTEGER, sum_systolic INTEGER, sum_diastolic INTEGER, min_systolic INTEGER, max_systolic INTEGER, min_diastolic INTEGER, max_diastolic INTEGER);",
+				/* readings so far have no context; rows compacted already aren't counted */
+				/* an aggregate always yields a row, so drop it in an outer query if empty; HAVING without GROUP BY needs SQLite 3.39 */
+				"INSERT INTO bp_context_stats SELECT 0, n, sum_s, sum_d, min_s, max_s, min_d, max_d FROM (SELECT COUNT(*) AS n, SUM(systolic) AS sum_s, SUM(diastolic) AS sum_d, MIN(systolic) AS min_s, MAX(systolic) AS max_s, MIN(diastolic) AS min_d, MAX(diastolic) AS max_d FROM blood_pressure WHERE systolic IS NOT NULL) WHERE n > 0;", };
+		private static final String[] CREATE_TABLES_V5 = new String[] {
+				/* Note: sketch is a ValueSketch; sealed under key_id if that is not NULL */
+				"CREATE TABLE daily_sketch (metric TEXT, day INTEGER, sketch BLOB, key_id INTEGER, PRIMARY KEY (metric, day));", };
+		private static final String[] CREATE_TABLES_V6 = new String[] {
+				/* Note: sealed summaries have NULL min, max, sum and count */
+				"ALTER TABLE daily_summary ADD COLUMN sealed BLOB;",
+				"ALTER TABLE daily_summary ADD COLUMN key_id INTEGER;",
+				/* Note: reencrypt_state is one of the REENCRYPT_* constants */
+				"ALTER TABLE crypto_settings ADD COLUMN reencrypt_state INTEGER NOT NULL DEFAULT 0;",
+				/* summaries, BP contexts and record key hashes are to be re-sealed: REENCRYPT_ROTATE */
+				"UPDATE crypto_settings SET reencrypt_state = 2;", };
+		private static final String[] CREATE_TABLES_V7 = new String[] {
+				/* Note: blobs under keys from bound_key_id on authenticate their place, see DBUtil.binding() */
+				"ALTER TABLE crypto_settings ADD COLUMN bound_key_id INTEGER NOT NULL DEFAULT 0;",
+				/* everything sealed so far is unbound; re-seal it under a new, bound key: REENCRYPT_ROTATE */
+				"UPDATE crypto_settings SET bound_key_id = (SELECT IFNULL(MAX(key_id), 0) + 1 FROM crypto_keys), reencrypt_state = 2;", };
 
-		public DBHelper(Context context) {
-			super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		public DBHelper(Context context, String name) {
+			super(context, name, null, DATABASE_VERSION);
 		}
 
 		@Override
@@ -60,33 +208,247 @@ public class DBUtil {
 			for (int i = 0; i < CREATE_TABLES_V0.length; ++i) {
 				db.execSQL(CREATE_TABLES_V0[i]);
 			}
+			onUpgrade(db, 1, DATABASE_VERSION);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVer, int newVer) {
-			// No-op, since there is currently only 1 version
+			if (oldVer < 2) {
+				for (int i = 0; i < CREATE_TABLES_V1.length; ++i) {
+					db.execSQL(CREATE_TABLES_V1[i]);
+				}
+			}
+			if (oldVer < 3) {
+				for (int i = 0; i < CREATE_TABLES_V2.length; ++i) {
+					db.execSQL(CREATE_TABLES_V2[i]);
+				}
+			}
+			if (oldVer < 4) {
+				for (int i = 0; i < CREATE_TABLES_V3.length; ++i) {
+					db.execSQL(CREATE_TABLES_V3[i]);
+				}
+			}
+			if (oldVer < 5) {
+				for (int i = 0; i < CREATE_TABLES_V4.length; ++i) {
+					db.execSQL(CREATE_TABLES_V4[i]);
+				}
+			}
+			if (oldVer < 6) {
+				for (int i = 0; i < CREATE_TABLES_V5.length; ++i) {
+					db.execSQL(CREATE_TABLES_V5[i]);
+				}
+				backfillSketches(db);
+			}
+			if (oldVer < 7) {
+				for (int i = 0; i < CREATE_TABLES_V6.length; ++i) {
+					db.execSQL(CREATE_TABLES_V6[i]);
+				}
+			}
+			if (oldVer < 8) {
+				for (int i = 0; i < CREATE_TABLES_V7.length; ++i) {
+					db.execSQL(CREATE_TABLES_V7[i]);
+				}
+			}
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			super.onOpen(db);
+			if (queryLong(db, "SELECT COUNT(*) FROM crypto_settings") > 0) {
+				secureDelete(db);
+			}
+		}
+
+		/**
+		 * Builds daily sketches from the plain raw rows already stored. Rows
+		 * compacted or sealed before the upgrade can't be included.
+		 */
+		private static void backfillSketches(SQLiteDatabase db) {
+			for (int t = 0; t < SKETCHED_TABLES.length; ++t) {
+				for (int col = 1; col < SKETCHED_TABLES[t].length; ++col) {
+					String column = SKETCHED_TABLES[t][col];
+					Cursor c = db.rawQuery("SELECT created, " + column
+							+ " FROM " + SKETCHED_TABLES[t][0] + " WHERE "
+							+ column + " IS NOT NULL ORDER BY created", null);
+					try {
+						ValueSketch sketch = null;
+						long day = 0;
+						while (c.moveToNext()) {
+							if (sketch != null && toDay(c.getLong(0)) != day) {
+								storeSketch(db, column, day, sketch, null);
+								sketch = null;
+							}
+							if (sketch == null) {
+								sketch = new ValueSketch();
+								day = toDay(c.getLong(0));
+							}
+							sketch.add(c.getInt(1));
+						}
+						if (sketch != null) {
+							storeSketch(db, column, day, sketch, null);
+						}
+					} finally {
+						c.close();
+					}
+				}
+			}
 		}
 	}
 
 	/** @see getInstance(Context) */
-	private DBUtil(Context context) {
-		dbHelper = new DBHelper(context);
+	private DBUtil(Context context, String name) {
+		dbHelper = new DBHelper(context, name);
 	}
 
 	private static DBUtil instance = null;
 
+	/**
+	 * The newest record keys of one table, with their created times. It holds
+	 * the key of every stored row created at or after 'horizon', so a record
+	 * created more than {@link DBUtil#DEDUP_WINDOW_MILLIS} after the horizon
+	 * whose keys aren't here is not a duplicate, and the stored keys needn't
+	 * be queried. Evicting a key moves the horizon past it.
+	 */
+	private static class RecentKeys extends LinkedHashMap<String, Long> {
+		private static final long serialVersionUID = 1L;
+
+		long horizon = Long.MIN_VALUE;
+
+		RecentKeys() {
+			super(RECENT_KEYS + 1);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			if (size() <= RECENT_KEYS) {
+				return false;
+			}
+			horizon = Math.max(horizon, eldest.getValue().longValue() + 1);
+			return true;
+		}
+	}
+
+	/**
+	 * The recent keys of each raw table, seeded from the table's newest rows
+	 * the first time a record is checked against them, so that checking a new
+	 * record (the common case) needs no database round trip. Dropped whenever
+	 * stored keys are rewritten. Guarded by the dbHelper lock.
+	 */
+	private final Map<String, RecentKeys> recentKeys = new HashMap<String, RecentKeys>();
+
+	/** Whether inserts check for duplicates; only scale tests turn it off. */
+	private boolean checkDuplicates = true;
+
+	/**
+	 * Unwrapped data keys by key_id, and the one new rows are sealed with.
+	 * Both are null unless encryption is enabled and the database unlocked.
+	 * Guarded by the dbHelper lock.
+	 */
+	private Map<Integer, FieldCipher> dataKeys = null;
+	private FieldCipher activeKey = null;
+
+	/** Whether crypto_settings has a row; null until first checked. */
+	private Boolean encrypted = null;
+
+	/** Approximate memory budget for cached query results. */
+	private static final int QUERY_CACHE_BYTES = 256 * 1024;
+
+	/**
+	 * Cached read results; the insert path drops entries covering the day of
+	 * each row written.
+	 */
+	private final QueryCache cache = new QueryCache(QUERY_CACHE_BYTES);
+
+	/** Set while a background compaction pass is running. */
+	private volatile boolean compacting = false;
+
+	/** Set while a background re-encryption pass is running. */
+	private volatile boolean reencrypting = false;
+
 	/** Singleton instance fetcher. */
 	public static DBUtil getInstance(Context context) {
 		if (instance == null) {
 			synchronized (lock) {
 				if (instance == null) {
-					instance = new DBUtil(context);
+					instance = new DBUtil(context, DBHelper.DATABASE_NAME);
 				}
 			}
 		}
 		return instance;
 	}
 
+	/**
+	 * Opens a separate database with the same schema, for scale tests that
+	 * must not touch the user's data. The caller should {@link #close()} it and
+	 * then delete it with Context.deleteDatabase(name).
+	 * 
+	 * @param name
+	 *            the database name; must not be the app's own
+	 */
+	static DBUtil openScratchDatabase(Context context, String name) {
+		if (DBHelper.DATABASE_NAME.equals(name)) {
+			throw new IllegalArgumentException("that is the user's database");
+		}
+		return new DBUtil(context, name);
+	}
+
+	/** Closes the underlying database. Only meant for scratch databases. */
+	void close() {
+		synchronized (dbHelper) {
+			dbHelper.close();
+		}
+	}
+
+	/** Returns the size of the database file, in bytes. */
+	public long getDatabaseSize() {
+		synchronized (dbHelper) {
+			return new File(dbHelper.getReadableDatabase().getPath()).length();
+		}
+	}
+
+	/**
+	 * Returns the local day a time falls on, counted in days since the epoch.
+	 * Every per-day table and series is bucketed this way, using the time
+	 * zone the device is in when the row is bucketed.
+	 * 
+	 * @param created
+	 *            a time in System.currentTimeMillis() format
+	 */
+	public static long toDay(long created) {
+		return (created + TimeZone.getDefault().getOffset(created))
+				/ DAY_MILLIS;
+	}
+
+	/**
+	 * Returns the time at which a local day starts, i.e. the earliest time
+	 * {@link #toDay(long)} maps to it.
+	 */
+	public static long dayStart(long day) {
+		Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		utc.setTimeInMillis(day * DAY_MILLIS);
+		Calendar local = Calendar.getInstance();
+		local.clear();
+		local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH), utc
+				.get(Calendar.DAY_OF_MONTH));
+		long start = local.getTimeInMillis();
+		if (toDay(start - 1) < day) {
+			return start;
+		}
+		// Where DST ends at midnight (e.g. Atlantic/Azores), midnight happens
+		// twice and Calendar picks the later one; search back for the first.
+		// No zone shifts its clocks back by more than a few hours.
+		long before = start - 6 * 60 * 60 * 1000L;
+		while (start - before > 1) {
+			long mid = before + (start - before) / 2;
+			if (toDay(mid) < day) {
+				before = mid;
+			} else {
+				start = mid;
+			}
+		}
+		return start;
+	}
+
 	/**
 	 * Returns a gigantic CSV representation of the accumulated health data.
 	 * 
@@ -163,7 +525,9 @@ public class DBUtil {
 	}
 
 	/**
-	 * Adds a blood pressure record to the database.
+	 * Adds a blood pressure record to the database. Saving the same reading
+	 * twice within {@link #DEDUP_WINDOW_MILLIS} (e.g. a double-tapped Save
+	 * button, or a replayed import) stores it only once.
 	 * 
 	 * @param systolic
 	 *            the systolic (high/top) reading
@@ -175,22 +539,30 @@ public class DBUtil {
 	 */
 	public boolean addBloodPressureRecord(int systolic, int diastolic,
 			long created) {
-		ContentValues values = new ContentValues();
-		values.put("systolic", systolic);
-		values.put("diastolic", diastolic);
-		values.put("created", created);
-		synchronized (dbHelper) {
-			try {
-				@SuppressWarnings("unused")
-				long rowId = dbHelper.getWritableDatabase().insert(
-						"blood_pressure", null, values);
-				// could check rowId for an error, but we can't do anything
-				// anyway
-			} catch (SQLException ex) {
-				return false;
-			}
-		}
-		return true;
+		return addBloodPressureRecord(systolic, diastolic,
+				BP_CONTEXT_UNKNOWN, created);
+	}
+
+	/**
+	 * Adds a blood pressure record to the database, noting what the user was
+	 * doing when it was taken.
+	 * 
+	 * @param systolic
+	 *            the systolic (high/top) reading
+	 * @param diastolic
+	 *            the diastolic (low/bottom) reading
+	 * @param context
+	 *            one of the BP_CONTEXT_* constants
+	 * @param created
+	 *            the date of the record, in System.currentTimeMillis() format
+	 * @return 'true' if the record was added successfully; 'false' if not
+	 * @throws IllegalArgumentException
+	 *             if 'context' is not one of the BP_CONTEXT_* constants
+	 */
+	public boolean addBloodPressureRecord(int systolic, int diastolic,
+			int context, long created) {
+		return insertRecord("blood_pressure", bloodPressureValues(systolic,
+				diastolic, context, created)) != FAILED;
 	}
 
 	/**
@@ -229,7 +601,9 @@ public class DBUtil {
 
 	/**
 	 * Records a weight record, converting from Imperial to SI units, as
-	 * necessary. Note that this method rounds to
+	 * necessary. Note that this method rounds to whole units. Like all the
+	 * add*Record methods, a repeat of the same record within
+	 * {@link #DEDUP_WINDOW_MILLIS} is silently dropped.
 	 * 
 	 * @param weight
 	 *            the weight to record
@@ -242,21 +616,7 @@ public class DBUtil {
 	 */
 	public boolean addWeightRecord(int weight, boolean isSI, long created) {
 		weight = isSI ? weight : (int) Math.round(weight * 2.20462262);
-		ContentValues values = new ContentValues();
-		values.put("weight", weight);
-		values.put("created", created);
-		synchronized (dbHelper) {
-			try {
-				@SuppressWarnings("unused")
-				long rowId = dbHelper.getWritableDatabase().insert("weight",
-						null, values);
-				// could check rowId for an error, but we can't do anything
-				// anyway
-			} catch (SQLException ex) {
-				return false;
-			}
-		}
-		return true;
+		return insertRecord("weight", weightValues(weight, created)) != FAILED;
 	}
 
 	/**
@@ -288,21 +648,7 @@ public class DBUtil {
 	 * @return 'true' if the record was added successfully; 'false' if not
 	 */
 	public boolean addCaloriesRecord(int kCal, long created) {
-		ContentValues values = new ContentValues();
-		values.put("calories", kCal);
-		values.put("created", created);
-		synchronized (dbHelper) {
-			try {
-				@SuppressWarnings("unused")
-				long rowId = dbHelper.getWritableDatabase().insert("calories",
-						null, values);
-				// could check rowId for an error, but we can't do anything
-				// anyway
-			} catch (SQLException ex) {
-				return false;
-			}
-		}
-		return true;
+		return insertRecord("calories", caloriesValues(kCal, created)) != FAILED;
 	}
 
 	/**
@@ -329,20 +675,1852 @@ public class DBUtil {
 	 * @return 'true' if the record was added successfully; 'false' if not
 	 */
 	public boolean addPointsRecord(int points, long created) {
+		return insertRecord("points", pointsValues(points, created)) != FAILED;
+	}
+
+	/**
+	 * Builds the key identifying a record for duplicate suppression: the kind
+	 * of record, its values, and the dedup window its created time falls in.
+	 * A duplicate may also sit in a neighbouring window; see
+	 * {@link #windowKeys(String)}.
+	 */
+	private static String recordKey(String table, long created, int... values) {
+		StringBuilder sb = new StringBuilder(table);
+		for (int value : values) {
+			sb.append(':').append(value);
+		}
+		return sb.append('@').append(created / DEDUP_WINDOW_MILLIS).toString();
+	}
+
+	/**
+	 * Returns a record key, followed by the keys the same record has in the
+	 * dedup windows just before and after. Two taps 200ms apart fall into
+	 * different windows about 2% of the time.
+	 */
+	private static String[] windowKeys(String key) {
+		int at = key.lastIndexOf('@');
+		String prefix = key.substring(0, at + 1);
+		long window = Long.parseLong(key.substring(at + 1));
+		return new String[] { key, prefix + (window - 1),
+				prefix + (window + 1) };
+	}
+
+	private static ContentValues bloodPressureValues(int systolic,
+			int diastolic, int context, long created) {
+		if (context < BP_CONTEXT_UNKNOWN || context > BP_CONTEXT_EXERCISING) {
+			throw new IllegalArgumentException("unknown context " + context);
+		}
+		ContentValues values = new ContentValues();
+		values.put("systolic", systolic);
+		values.put("diastolic", diastolic);
+		values.put("context", context);
+		values.put("created", created);
+		values.put("record_key", recordKey("blood_pressure", created,
+				systolic, diastolic));
+		return values;
+	}
+
+	private static ContentValues weightValues(int kg, long created) {
+		ContentValues values = new ContentValues();
+		values.put("weight", kg);
+		values.put("created", created);
+		values.put("record_key", recordKey("weight", created, kg));
+		return values;
+	}
+
+	private static ContentValues caloriesValues(int kCal, long created) {
+		ContentValues values = new ContentValues();
+		values.put("calories", kCal);
+		values.put("created", created);
+		values.put("record_key", recordKey("calories", created, kCal));
+		return values;
+	}
+
+	private static ContentValues pointsValues(int points, long created) {
 		ContentValues values = new ContentValues();
 		values.put("points", points);
 		values.put("created", created);
+		values.put("record_key", recordKey("points", created, points));
+		return values;
+	}
+
+	/**
+	 * Inserts a single record, unless it duplicates one already stored. The
+	 * row and everything derived from it (context totals, daily sketches) are
+	 * written in one transaction, so they can't get out of step.
+	 * 
+	 * @return INSERTED, DUPLICATE or FAILED
+	 */
+	private int insertRecord(String table, ContentValues values) {
 		synchronized (dbHelper) {
+			Map<String, Map<String, Long>> written = new HashMap<String, Map<String, Long>>();
+			int result;
 			try {
-				@SuppressWarnings("unused")
-				long rowId = dbHelper.getWritableDatabase().insert("points",
-						null, values);
-				// could check rowId for an error, but we can't do anything
-				// anyway
+				SQLiteDatabase db = dbHelper.getWritableDatabase();
+				db.beginTransaction();
+				try {
+					result = insertLocked(db, table, values, written);
+					if (result != FAILED) {
+						db.setTransactionSuccessful();
+					}
+				} finally {
+					db.endTransaction();
+				}
 			} catch (SQLException ex) {
-				return false;
+				return FAILED;
+			}
+			if (result != FAILED) {
+				rememberKeys(written);
 			}
+			return result;
+		}
+	}
+
+	/**
+	 * Inserts a record, sealing it first if encryption is on; the caller must
+	 * hold the dbHelper lock and have a transaction open. Checks the in-memory
+	 * recent keys, and the keys already written in this transaction; only a
+	 * record too old for the recent keys to be complete is also looked up
+	 * among the stored keys of this and the neighbouring dedup windows. Keys
+	 * seen are added to 'written' (by table) rather than to the recent keys,
+	 * which the caller should only do once the transaction has committed.
+	 * 
+	 * A record on a day that has already been compacted is stored as a raw
+	 * row like any other; reads add it to the day's summary, and the next
+	 * compaction folds it in. The keys of compacted rows are gone, though, so
+	 * replaying an import of readings that have since been compacted stores
+	 * them again; losing a back-dated reading would be worse.
+	 */
+	private int insertLocked(SQLiteDatabase db, String table,
+			ContentValues values, Map<String, Map<String, Long>> written) {
+		long created = values.getAsLong("created");
+		if (!checkDuplicates) {
+			values = new ContentValues(values);
+			values.remove("record_key");
+		}
+		ContentValues plain = values;
+		if (activeKey != null) {
+			values = sealValues(table, values);
+			if (values == null) {
+				return FAILED;
+			}
+		} else if (isEncryptedLocked(db)) {
+			// never write plaintext into an encrypted database
+			return FAILED;
+		}
+		String[] keys = null;
+		Map<String, Long> pending = written.get(table);
+		if (pending == null) {
+			pending = new HashMap<String, Long>();
+			written.put(table, pending);
+		}
+		if (checkDuplicates) {
+			keys = windowKeys(plain.getAsString("record_key"));
+			if (activeKey != null) {
+				for (int i = 0; i < keys.length; ++i) {
+					keys[i] = activeKey.keyedHash(keys[i]);
+				}
+			}
+			RecentKeys recent = recentKeys(db, table);
+			if (isRecentDuplicate(recent, keys, created)
+					|| isRecentDuplicate(pending, keys, created)) {
+				return DUPLICATE;
+			}
+			if (created - DEDUP_WINDOW_MILLIS < recent.horizon
+					&& isStoredDuplicate(db, table, keys, created)) {
+				pending.put(keys[0], Long.valueOf(created));
+				return DUPLICATE;
+			}
+		}
+		if (db.insert(table, null, values) < 0) {
+			return FAILED;
+		}
+		if (keys != null) {
+			pending.put(keys[0], Long.valueOf(created));
+		}
+		cache.invalidate(table, toDay(values.getAsLong("created")));
+		if (activeKey == null && "blood_pressure".equals(table)) {
+			updateContextStats(db, plain);
+		}
+		updateSketches(db, table, plain);
+		return INSERTED;
+	}
+
+	/**
+	 * Returns the recent keys of a table, seeding them from its newest stored
+	 * keys first if need be; needs the dbHelper lock.
+	 */
+	private RecentKeys recentKeys(SQLiteDatabase db, String table) {
+		RecentKeys recent = recentKeys.get(table);
+		if (recent != null) {
+			return recent;
+		}
+		recent = new RecentKeys();
+		Cursor c = db.rawQuery("SELECT record_key, created FROM " + table
+				+ " WHERE record_key IS NOT NULL ORDER BY created DESC LIMIT "
+				+ RECENT_KEYS, null);
+		try {
+			List<String> keys = new ArrayList<String>();
+			List<Long> created = new ArrayList<Long>();
+			while (c.moveToNext()) {
+				keys.add(c.getString(0));
+				created.add(Long.valueOf(c.getLong(1)));
+			}
+			if (keys.size() == RECENT_KEYS) {
+				// older rows, or ones created at the same time, were left out
+				recent.horizon = created.get(RECENT_KEYS - 1).longValue() + 1;
+			}
+			// oldest first, so that they are evicted first
+			for (int i = keys.size() - 1; i >= 0; --i) {
+				recent.put(keys.get(i), created.get(i));
+			}
+		} finally {
+			c.close();
+		}
+		recentKeys.put(table, recent);
+		return recent;
+	}
+
+	/**
+	 * Moves the keys written by a committed transaction into the recent keys
+	 * of their tables; needs the dbHelper lock.
+	 */
+	private void rememberKeys(Map<String, Map<String, Long>> written) {
+		for (Map.Entry<String, Map<String, Long>> table : written.entrySet()) {
+			RecentKeys recent = recentKeys.get(table.getKey());
+			if (recent != null) {
+				recent.putAll(table.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns whether one of a record's window keys is among some known keys,
+	 * for a record created less than {@link #DEDUP_WINDOW_MILLIS} from it.
+	 */
+	private static boolean isRecentDuplicate(Map<String, Long> known,
+			String[] keys, long created) {
+		for (int i = 0; i < keys.length; ++i) {
+			Long seen = known.get(keys[i]);
+			if (seen == null) {
+				continue;
+			}
+			if (Math.abs(seen.longValue() - created) < DEDUP_WINDOW_MILLIS) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether a stored row has one of a record's window keys and was
+	 * created less than {@link #DEDUP_WINDOW_MILLIS} from it; a single lookup
+	 * on the record_key index.
+	 */
+	private static boolean isStoredDuplicate(SQLiteDatabase db, String table,
+			String[] keys, long created) {
+		Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + table
+				+ " WHERE record_key IN (?, ?, ?)"
+				+ " AND created > ? AND created < ?", new String[] { keys[0],
+				keys[1], keys[2],
+				Long.toString(created - DEDUP_WINDOW_MILLIS),
+				Long.toString(created + DEDUP_WINDOW_MILLIS) });
+		try {
+			return c.moveToFirst() && c.getInt(0) > 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Turns duplicate checks on or off, so that scale tests can measure what
+	 * they cost. Records written with checks off have no record key.
+	 */
+	void setDuplicateChecks(boolean enabled) {
+		synchronized (dbHelper) {
+			checkDuplicates = enabled;
+		}
+	}
+
+	/**
+	 * Adds a new row's values to the daily sketches of its table's metrics,
+	 * if it has any; needs the dbHelper lock.
+	 * 
+	 * @throws SQLException
+	 *             if a sketch can't be opened; starting it over would throw
+	 *             away the rest of that day's distribution
+	 */
+	private void updateSketches(SQLiteDatabase db, String table,
+			ContentValues row) {
+		for (int t = 0; t < SKETCHED_TABLES.length; ++t) {
+			if (!SKETCHED_TABLES[t][0].equals(table)) {
+				continue;
+			}
+			long day = toDay(row.getAsLong("created"));
+			for (int col = 1; col < SKETCHED_TABLES[t].length; ++col) {
+				String metric = SKETCHED_TABLES[t][col];
+				ValueSketch sketch = loadSketch(db, metric, day);
+				if (sketch == null) {
+					throw new SQLException("can't open the " + metric
+							+ " sketch of day " + day);
+				}
+				sketch.add(row.getAsInteger(metric));
+				storeSketch(db, metric, day, sketch, activeKey);
+			}
+		}
+	}
+
+	/**
+	 * Returns the stored sketch for a metric and day: empty if there is none,
+	 * or null if it is sealed and can't be opened. Needs the dbHelper lock.
+	 */
+	private ValueSketch loadSketch(SQLiteDatabase db, String metric, long day) {
+		Cursor c = db.rawQuery("SELECT sketch, key_id FROM daily_sketch"
+				+ " WHERE metric = ? AND day = ?", new String[] { metric,
+				Long.toString(day) });
+		try {
+			if (!c.moveToFirst()) {
+				return new ValueSketch();
+			}
+			return openSketch(c.getBlob(0), c.isNull(1) ? null : Integer
+					.valueOf(c.getInt(1)), metric, day);
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Deserializes a stored sketch, opening it first if it is sealed; returns
+	 * null if it can't be opened. Needs the dbHelper lock.
+	 */
+	private ValueSketch openSketch(byte[] blob, Integer keyId, String metric,
+			long day) {
+		byte[] bytes = openSketchBytes(blob, keyId, metric, day);
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return ValueSketch.fromBytes(bytes);
+		} catch (IllegalArgumentException ex) {
+			Log.w(Diagnostics.TAG, "corrupt sketch", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a stored sketch's serialized form, opening it if it is sealed;
+	 * returns null if it can't be opened. Needs the dbHelper lock.
+	 */
+	private byte[] openSketchBytes(byte[] blob, Integer keyId, String metric,
+			long day) {
+		if (keyId == null) {
+			return blob;
+		}
+		FieldCipher key = dataKeys == null ? null : dataKeys.get(keyId);
+		if (key == null) {
+			return null;
+		}
+		try {
+			return key.open(blob, binding("daily_sketch", keyId.intValue(),
+					metric, day));
+		} catch (GeneralSecurityException ex) {
+			Log.w(Diagnostics.TAG, "corrupt sealed sketch", ex);
+			return null;
+		}
+	}
+
+	/** Writes a sketch, sealed under 'key' unless that is null. */
+	private static void storeSketch(SQLiteDatabase db, String metric,
+			long day, ValueSketch sketch, FieldCipher key) {
+		ContentValues values = new ContentValues();
+		values.put("metric", metric);
+		values.put("day", day);
+		if (key == null) {
+			values.put("sketch", sketch.toBytes());
+			values.putNull("key_id");
+		} else {
+			try {
+				values.put("sketch", key.seal(sketch.toBytes(), binding(
+						"daily_sketch", key.getKeyId(), metric, day)));
+			} catch (GeneralSecurityException ex) {
+				throw new SQLException("sealing sketch failed");
+			}
+			values.put("key_id", key.getKeyId());
+		}
+		db.replace("daily_sketch", null, values);
+	}
+
+	/**
+	 * Returns the distribution of a metric's readings over a span of days
+	 * (e.g. a month or a year), by merging the per-day sketches kept up to
+	 * date on every insert. This covers days that have since been compacted.
+	 * 
+	 * @param metric
+	 *            "systolic", "diastolic" or "weight"
+	 * @param firstDay
+	 *            the first local day (see {@link #toDay(long)}) to include
+	 * @param days
+	 *            the number of days to include
+	 * @return the merged sketch; in an encrypted database, sealed days are
+	 *         only included once it has been unlocked
+	 */
+	public ValueSketch getDistribution(String metric, long firstDay, int days) {
+		ValueSketch merged = new ValueSketch();
+		synchronized (dbHelper) {
+			Cursor c = dbHelper.getReadableDatabase().rawQuery(
+					"SELECT sketch, key_id, day FROM daily_sketch"
+							+ " WHERE metric = ? AND day >= ? AND day < ?",
+					new String[] { metric, Long.toString(firstDay),
+							Long.toString(firstDay + days) });
+			try {
+				while (c.moveToNext()) {
+					byte[] bytes = openSketchBytes(c.getBlob(0),
+							c.isNull(1) ? null : Integer.valueOf(c.getInt(1)),
+							metric, c.getLong(2));
+					if (bytes == null) {
+						continue;
+					}
+					try {
+						merged.mergeBytes(bytes);
+					} catch (IllegalArgumentException ex) {
+						Log.w(Diagnostics.TAG, "corrupt sketch",
+								ex);
+					}
+				}
+			} finally {
+				c.close();
+			}
+		}
+		return merged;
+	}
+
+	/** Adds a plain blood pressure row to its context's running totals. */
+	private static void updateContextStats(SQLiteDatabase db,
+			ContentValues row) {
+		Integer context = row.getAsInteger("context");
+		Integer systolic = row.getAsInteger("systolic");
+		Integer diastolic = row.getAsInteger("diastolic");
+		db.execSQL("INSERT OR IGNORE INTO bp_context_stats (context, count,"
+				+ " sum_systolic, sum_diastolic, min_systolic, max_systolic,"
+				+ " min_diastolic, max_diastolic)"
+				+ " VALUES (?, 0, 0, 0, ?, ?, ?, ?)", new Object[] { context,
+				systolic, systolic, diastolic, diastolic });
+		db.execSQL("UPDATE bp_context_stats SET count = count + 1,"
+				+ " sum_systolic = sum_systolic + ?,"
+				+ " sum_diastolic = sum_diastolic + ?,"
+				+ " min_systolic = MIN(min_systolic, ?),"
+				+ " max_systolic = MAX(max_systolic, ?),"
+				+ " min_diastolic = MIN(min_diastolic, ?),"
+				+ " max_diastolic = MAX(max_diastolic, ?) WHERE context = ?",
+				new Object[] { systolic, diastolic, systolic, systolic,
+						diastolic, diastolic, context });
+	}
+
+	/** Blood pressure readings, oldest first, as parallel arrays. */
+	public static class BloodPressureReadings {
+		public long[] created;
+		public int[] systolic;
+		public int[] diastolic;
+	}
+
+	/** Summary statistics of the blood pressure readings in one context. */
+	public static class BloodPressureStats {
+		public int count;
+		public double meanSystolic;
+		public double meanDiastolic;
+		public int minSystolic;
+		public int maxSystolic;
+		public int minDiastolic;
+		public int maxDiastolic;
+	}
+
+	/**
+	 * Returns the blood pressure readings taken in one context over a span of
+	 * time, e.g. resting readings of the last 90 days. Plain rows are read
+	 * from the (context, created) covering index alone.
+	 * 
+	 * @param context
+	 *            one of the BP_CONTEXT_* constants
+	 * @param from
+	 *            the start of the span, inclusive, in
+	 *            System.currentTimeMillis() format
+	 * @param to
+	 *            the end of the span, exclusive
+	 * @return the readings; in an encrypted database, sealed rows are only
+	 *         included once it has been unlocked
+	 */
+	public BloodPressureReadings getBloodPressureReadings(int context,
+			long from, long to) {
+		String[] args = new String[] { Integer.toString(context),
+				Long.toString(from), Long.toString(to) };
+		List<long[]> rows = new ArrayList<long[]>();
+		synchronized (dbHelper) {
+			SQLiteDatabase db = dbHelper.getReadableDatabase();
+			Cursor c = db.rawQuery("SELECT created, systolic, diastolic"
+					+ " FROM blood_pressure WHERE context = ?"
+					+ " AND created >= ? AND created < ? AND key_id IS NULL",
+					args);
+			try {
+				while (c.moveToNext()) {
+					rows.add(new long[] { c.getLong(0), c.getLong(1),
+							c.getLong(2) });
+				}
+			} finally {
+				c.close();
+			}
+			if (dataKeys != null) {
+				// the context is sealed too, so has to be matched here
+				c = db.rawQuery("SELECT created, sealed, key_id, context"
+						+ " FROM blood_pressure WHERE created >= ?"
+						+ " AND created < ? AND key_id IS NOT NULL",
+						new String[] { args[1], args[2] });
+				try {
+					while (c.moveToNext()) {
+						int[] values = openValues(c.getBlob(1), c.getInt(2),
+								"blood_pressure", c.getLong(0));
+						if (values == null) {
+							continue;
+						}
+						// rows sealed before the context was still have it here
+						int sealedContext = values.length > 2 ? values[2] : c
+								.getInt(3);
+						if (sealedContext == context) {
+							rows.add(new long[] { c.getLong(0), values[0],
+									values[1] });
+						}
+					}
+				} finally {
+					c.close();
+				}
+			}
+		}
+		Collections.sort(rows, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+			}
+		});
+		BloodPressureReadings readings = new BloodPressureReadings();
+		readings.created = new long[rows.size()];
+		readings.systolic = new int[rows.size()];
+		readings.diastolic = new int[rows.size()];
+		for (int i = 0; i < rows.size(); ++i) {
+			long[] row = rows.get(i);
+			readings.created[i] = row[0];
+			readings.systolic[i] = (int) row[1];
+			readings.diastolic[i] = (int) row[2];
+		}
+		return readings;
+	}
+
+	/**
+	 * Returns all-time statistics for the blood pressure readings taken in one
+	 * context. These are kept up to date on every insert, so this is a single
+	 * row lookup; in an encrypted database, where no plaintext totals are
+	 * kept, it has to open every reading in the context instead.
+	 * 
+	 * @param context
+	 *            one of the BP_CONTEXT_* constants
+	 * @return the statistics; 'count' is 0 if there are no readings
+	 */
+	public BloodPressureStats getBloodPressureStats(int context) {
+		BloodPressureStats stats = new BloodPressureStats();
+		synchronized (dbHelper) {
+			SQLiteDatabase db = dbHelper.getReadableDatabase();
+			if (!isEncryptedLocked(db)) {
+				Cursor c = db.rawQuery("SELECT count, sum_systolic,"
+						+ " sum_diastolic, min_systolic, max_systolic,"
+						+ " min_diastolic, max_diastolic FROM bp_context_stats"
+						+ " WHERE context = ?", new String[] { Integer
+						.toString(context) });
+				try {
+					if (c.moveToFirst() && c.getInt(0) > 0) {
+						stats.count = c.getInt(0);
+						stats.meanSystolic = (double) c.getLong(1)
+								/ stats.count;
+						stats.meanDiastolic = (double) c.getLong(2)
+								/ stats.count;
+						stats.minSystolic = c.getInt(3);
+						stats.maxSystolic = c.getInt(4);
+						stats.minDiastolic = c.getInt(5);
+						stats.maxDiastolic = c.getInt(6);
+					}
+				} finally {
+					c.close();
+				}
+				return stats;
+			}
+		}
+
+		BloodPressureReadings readings = getBloodPressureReadings(context,
+				Long.MIN_VALUE, Long.MAX_VALUE);
+		stats.count = readings.created.length;
+		if (stats.count == 0) {
+			return stats;
+		}
+		long sumSystolic = 0, sumDiastolic = 0;
+		stats.minSystolic = stats.minDiastolic = Integer.MAX_VALUE;
+		stats.maxSystolic = stats.maxDiastolic = Integer.MIN_VALUE;
+		for (int i = 0; i < stats.count; ++i) {
+			int sys = readings.systolic[i], dia = readings.diastolic[i];
+			sumSystolic += sys;
+			sumDiastolic += dia;
+			stats.minSystolic = Math.min(stats.minSystolic, sys);
+			stats.maxSystolic = Math.max(stats.maxSystolic, sys);
+			stats.minDiastolic = Math.min(stats.minDiastolic, dia);
+			stats.maxDiastolic = Math.max(stats.maxDiastolic, dia);
+		}
+		stats.meanSystolic = (double) sumSystolic / stats.count;
+		stats.meanDiastolic = (double) sumDiastolic / stats.count;
+		return stats;
+	}
+
+	/** Returns a new, empty {@link Batch} of records to be added together. */
+	public Batch newBatch() {
+		return new Batch();
+	}
+
+	/**
+	 * A set of records to be written in a single transaction, e.g. for an
+	 * import. Duplicates (of each other, or of records already stored) are
+	 * skipped and counted rather than failing the batch.
+	 */
+	public class Batch {
+		private final List<String> tables = new ArrayList<String>();
+		private final List<ContentValues> rows = new ArrayList<ContentValues>();
+		private int inserted = 0;
+		private int duplicates = 0;
+
+		private Batch() {
+		}
+
+		/** @see DBUtil#addBloodPressureRecord(int, int, long) */
+		public Batch addBloodPressureRecord(int systolic, int diastolic,
+				long created) {
+			return addBloodPressureRecord(systolic, diastolic,
+					BP_CONTEXT_UNKNOWN, created);
+		}
+
+		/** @see DBUtil#addBloodPressureRecord(int, int, int, long) */
+		public Batch addBloodPressureRecord(int systolic, int diastolic,
+				int context, long created) {
+			return add("blood_pressure", bloodPressureValues(systolic,
+					diastolic, context, created));
+		}
+
+		/** @see DBUtil#addWeightRecord(int, long) */
+		public Batch addWeightRecord(int kg, long created) {
+			return add("weight", weightValues(kg, created));
+		}
+
+		/** @see DBUtil#addCaloriesRecord(int, long) */
+		public Batch addCaloriesRecord(int kCal, long created) {
+			return add("calories", caloriesValues(kCal, created));
+		}
+
+		/** @see DBUtil#addPointsRecord(int, long) */
+		public Batch addPointsRecord(int points, long created) {
+			return add("points", pointsValues(points, created));
+		}
+
+		private Batch add(String table, ContentValues values) {
+			tables.add(table);
+			rows.add(values);
+			return this;
+		}
+
+		/** Returns the number of records queued but not yet committed. */
+		public int size() {
+			return rows.size();
+		}
+
+		/**
+		 * Writes all queued records in one transaction, and empties the batch.
+		 * 
+		 * @return 'true' if the batch was written (duplicates included);
+		 *         'false' if any record failed, in which case nothing from
+		 *         this batch is stored
+		 */
+		public boolean commit() {
+			int added = 0, skipped = 0;
+			synchronized (dbHelper) {
+				SQLiteDatabase db;
+				try {
+					db = dbHelper.getWritableDatabase();
+				} catch (SQLException ex) {
+					return false;
+				}
+				Map<String, Map<String, Long>> written = new HashMap<String, Map<String, Long>>();
+				try {
+					db.beginTransaction();
+					try {
+						for (int i = 0; i < rows.size(); ++i) {
+							int result = insertLocked(db, tables.get(i),
+									rows.get(i), written);
+							if (result == FAILED) {
+								return false;
+							}
+							if (result == INSERTED) {
+								++added;
+							} else {
+								++skipped;
+							}
+						}
+						db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
+				} catch (SQLException ex) {
+					return false;
+				}
+				rememberKeys(written);
+			}
+			inserted += added;
+			duplicates += skipped;
+			tables.clear();
+			rows.clear();
+			return true;
+		}
+
+		/** Returns the number of records this batch has stored so far. */
+		public int getInserted() {
+			return inserted;
+		}
+
+		/** Returns the number of duplicate records this batch has skipped. */
+		public int getDuplicates() {
+			return duplicates;
+		}
+	}
+
+	/**
+	 * Returns per-day aggregates of a value column, combining raw rows with any
+	 * daily summaries that older rows have been compacted into. Days are local
+	 * days since the epoch, see {@link #toDay(long)}. Results are
+	 * cached until a row is written to one of the days they cover, so
+	 * repeating a query (e.g. when a screen resumes) doesn't touch SQLite.
+	 * 
+	 * @param table
+	 *            the table to read, e.g. "weight"
+	 * @param column
+	 *            the value column to aggregate, e.g. "weight"
+	 * @param firstDay
+	 *            the first day to include
+	 * @param days
+	 *            the number of days to include
+	 * @param mean
+	 *            if 'true' each day holds the mean of its readings, if 'false'
+	 *            their sum (e.g. total calories eaten that day)
+	 * @return an array of length 'days'; days with no readings hold NaN. In
+	 *         an encrypted database, sealed rows are only included once it has
+	 *         been unlocked.
+	 */
+	public double[] getDailySeries(String table, String column, long firstDay,
+			int days, boolean mean) {
+		String key = seriesKey(table, column, firstDay, days, mean);
+		double[] series = cache.getSeries(key);
+		if (series != null) {
+			return series;
+		}
+		synchronized (dbHelper) {
+			// filled under the lock, so that no write can slip in between
+			series = loadDailySeries(table, column, firstDay, days, mean);
+			cache.putSeries(key, table, firstDay, series);
+		}
+		return series;
+	}
+
+	/**
+	 * Returns a daily series encoded for the chart server, e.g. for the
+	 * trend screens; the encoding is cached along with the series.
+	 * 
+	 * @see #getDailySeries(String, String, long, int, boolean)
+	 * @see ChartEncoder#simpleEncode(int[])
+	 */
+	public String getEncodedDailySeries(String table, String column,
+			long firstDay, int days, boolean mean) {
+		String key = QueryCache.key(table, column, mean ? "chart-mean"
+				: "chart-sum", firstDay, days);
+		String payload = cache.getString(key);
+		if (payload != null) {
+			return payload;
+		}
+		synchronized (dbHelper) {
+			// the payload lookup was counted, so don't count this one as well
+			String seriesKey = seriesKey(table, column, firstDay, days, mean);
+			double[] series = cache.peekSeries(seriesKey);
+			if (series == null) {
+				series = loadDailySeries(table, column, firstDay, days, mean);
+				cache.putSeries(seriesKey, table, firstDay, series);
+			}
+			int[] data = new int[series.length];
+			for (int i = 0; i < series.length; ++i) {
+				// negative values mark missing data for the encoder
+				data[i] = Double.isNaN(series[i]) ? -1 : (int) Math
+						.round(series[i]);
+			}
+			payload = ChartEncoder.simpleEncode(data).toString();
+			cache.putString(key, table, firstDay, days, payload);
+		}
+		return payload;
+	}
+
+	private static String seriesKey(String table, String column,
+			long firstDay, int days, boolean mean) {
+		return QueryCache.key(table, column, mean ? "mean" : "sum", firstDay,
+				days);
+	}
+
+	/**
+	 * Returns the cache that {@link #getDailySeries(String, String, long, int,
+	 * boolean)} and {@link #getEncodedDailySeries(String, String, long, int,
+	 * boolean)} are served from, e.g. for its hit and miss counts.
+	 */
+	public QueryCache getQueryCache() {
+		return cache;
+	}
+
+	/** Queries a daily series; needs the dbHelper lock. */
+	private double[] loadDailySeries(String table, String column,
+			long firstDay, int days, boolean mean) {
+		double[] sums = new double[days];
+		int[] counts = new int[days];
+		long lastDay = firstDay + days;
+		SQLiteDatabase db = dbHelper.getReadableDatabase();
+		long from = dayStart(firstDay), to = dayStart(lastDay);
+		// sealed rows have a NULL column, so aren't counted here
+		Map<Long, long[]> plain = aggregateByDay(db, table, column, from, to);
+		for (Map.Entry<Long, long[]> day : plain.entrySet()) {
+			int i = (int) (day.getKey().longValue() - firstDay);
+			if (i < 0 || i >= days) {
+				continue;
+			}
+			sums[i] += day.getValue()[2];
+			counts[i] += day.getValue()[3];
+		}
+		Cursor c;
+		String[] rangeArgs = new String[] { Long.toString(from),
+				Long.toString(to) };
+		if (dataKeys != null) {
+			int index = valueIndex(table, column);
+			c = db.rawQuery("SELECT created, sealed, key_id FROM " + table
+					+ " WHERE created >= ? AND created < ?"
+					+ " AND sealed IS NOT NULL", rangeArgs);
+			try {
+				while (c.moveToNext()) {
+					int[] values = openValues(c.getBlob(1), c.getInt(2),
+							table, c.getLong(0));
+					int i = (int) (toDay(c.getLong(0)) - firstDay);
+					if (values != null && i >= 0 && i < days) {
+						sums[i] += values[index];
+						counts[i]++;
+					}
+				}
+			} finally {
+				c.close();
+			}
+		}
+		c = db.rawQuery("SELECT day, sum, count, sealed, key_id"
+				+ " FROM daily_summary WHERE metric = ? AND day >= ?"
+				+ " AND day < ?", new String[] { column,
+				Long.toString(firstDay), Long.toString(lastDay) });
+		try {
+			while (c.moveToNext()) {
+				int i = (int) (c.getLong(0) - firstDay);
+				if (c.isNull(3)) {
+					sums[i] += c.getLong(1);
+					counts[i] += c.getInt(2);
+				} else if (dataKeys != null) {
+					// sealed as {min, max, sum, count}
+					int[] values = openValues(c.getBlob(3), c.getInt(4),
+							"daily_summary", column, c.getLong(0));
+					if (values != null) {
+						sums[i] += values[2];
+						counts[i] += values[3];
+					}
+				}
+			}
+		} finally {
+			c.close();
+		}
+		for (int i = 0; i < days; ++i) {
+			if (counts[i] == 0) {
+				sums[i] = Double.NaN;
+			} else if (mean) {
+				sums[i] /= counts[i];
+			}
+		}
+		return sums;
+	}
+
+	/**
+	 * Aggregates the plain values of a column per local day, over rows created
+	 * in [from, to). SQLite groups by quarter hour, which keeps the result
+	 * small, and the quarters are folded into local days here.
+	 * 
+	 * @return a map from day to {min, max, sum, count}, in day order
+	 */
+	private static Map<Long, long[]> aggregateByDay(SQLiteDatabase db,
+			String table, String column, long from, long to) {
+		Map<Long, long[]> days = new TreeMap<Long, long[]>();
+		Cursor c = db.rawQuery("SELECT MIN(created), MIN(" + column
+				+ "), MAX(" + column + "), SUM(" + column + "), COUNT(*)"
+				+ " FROM " + table + " WHERE created >= ? AND created < ?"
+				+ " AND " + column + " IS NOT NULL GROUP BY created / "
+				+ QUARTER_HOUR_MILLIS, new String[] { Long.toString(from),
+				Long.toString(to) });
+		try {
+			while (c.moveToNext()) {
+				Long day = Long.valueOf(toDay(c.getLong(0)));
+				long[] agg = days.get(day);
+				if (agg == null) {
+					days.put(day, new long[] { c.getLong(1), c.getLong(2),
+							c.getLong(3), c.getLong(4) });
+				} else {
+					agg[0] = Math.min(agg[0], c.getLong(1));
+					agg[1] = Math.max(agg[1], c.getLong(2));
+					agg[2] += c.getLong(3);
+					agg[3] += c.getLong(4);
+				}
+			}
+		} finally {
+			c.close();
+		}
+		return days;
+	}
+
+	/**
+	 * Folds raw readings older than the retention window into the per-day
+	 * daily_summary table (min, max, sum and count per value column), and
+	 * deletes the raw rows. Work is done oldest-first, in transactions of at
+	 * most roughly 'batchSize' rows per table, and the lock is released between
+	 * transactions so that writes from the UI are not held up. Since every
+	 * transaction leaves the database consistent, an interrupted compaction
+	 * simply resumes from the oldest remaining rows on the next call.
+	 * 
+	 * Nothing is compacted in an encrypted database: summaries are written in
+	 * the clear, and only sealed afterwards by {@link #reencrypt(int)}.
+	 * 
+	 * @param retainMillis
+	 *            how long to keep raw readings, in milliseconds
+	 * @param batchSize
+	 *            the maximum number of rows to fold per transaction
+	 * @return the number of raw rows folded into summaries, or -1 if the
+	 *         compaction failed partway through
+	 */
+	public int compactOldRecords(long retainMillis, int batchSize) {
+		// only fold whole days, so that a day is never half raw, half summary
+		long cutoff = dayStart(toDay(System.currentTimeMillis()
+				- retainMillis));
+		int folded = 0;
+		for (int i = 0; i < RAW_TABLES.length; ++i) {
+			int n;
+			do {
+				synchronized (dbHelper) {
+					try {
+						SQLiteDatabase db = dbHelper.getWritableDatabase();
+						if (isEncryptedLocked(db)) {
+							// checked per batch, in case it was just enabled
+							return folded;
+						}
+						n = compactBatch(db, RAW_TABLES[i], cutoff, batchSize);
+					} catch (SQLException ex) {
+						Log.w(Diagnostics.TAG, "compaction of "
+								+ RAW_TABLES[i][0] + " failed", ex);
+						return -1;
+					}
+				}
+				folded += n;
+			} while (n > 0);
+		}
+		return folded;
+	}
+
+	/**
+	 * Runs a single compaction transaction for one table.
+	 * 
+	 * @return the number of raw rows folded; 0 means the table has nothing
+	 *         left to compact
+	 */
+	private static int compactBatch(SQLiteDatabase db, String[] table,
+			long cutoff, int batchSize) {
+		String name = table[0];
+		String[] cutoffArg = new String[] { Long.toString(cutoff) };
+		db.beginTransaction();
+		try {
+			// find where this batch ends, rounded down to a day boundary
+			long bound = cutoff;
+			Cursor c = db.rawQuery("SELECT created FROM " + name
+					+ " WHERE created < ? AND sealed IS NULL"
+					+ " ORDER BY created LIMIT 1 OFFSET "
+					+ batchSize, cutoffArg);
+			try {
+				if (c.moveToFirst()) {
+					long lastDay = toDay(c.getLong(0));
+					if (lastDay <= firstDay(db, name)) {
+						// a single day holds more than a batch; fold it whole
+						++lastDay;
+					}
+					bound = dayStart(lastDay);
+				}
+			} finally {
+				c.close();
+			}
+
+			String[] boundArg = new String[] { Long.toString(bound) };
+			int folded = 0; // rows, counted once even for multi-column tables
+			for (int col = 1; col < table.length; ++col) {
+				String column = table[col];
+				Map<Long, long[]> days = aggregateByDay(db, name, column,
+						Long.MIN_VALUE, bound);
+				for (Map.Entry<Long, long[]> day : days.entrySet()) {
+					long[] agg = day.getValue();
+					mergeDailySummary(db, column, day.getKey().longValue(),
+							agg[0], agg[1], agg[2], agg[3]);
+					if (col == 1) {
+						folded += agg[3];
+					}
+				}
+			}
+			db.delete(name, "created < ? AND sealed IS NULL", boundArg);
+			db.setTransactionSuccessful();
+			return folded;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/** Returns the day holding a table's oldest plain row. */
+	private static long firstDay(SQLiteDatabase db, String table) {
+		Cursor c = db.rawQuery("SELECT MIN(created) FROM " + table
+				+ " WHERE sealed IS NULL", null);
+		try {
+			if (!c.moveToFirst() || c.isNull(0)) {
+				return Long.MAX_VALUE;
+			}
+			return toDay(c.getLong(0));
+		} finally {
+			c.close();
+		}
+	}
+
+	/** Folds one day's worth of aggregates into the daily_summary table. */
+	private static void mergeDailySummary(SQLiteDatabase db, String metric,
+			long day, long min, long max, long sum, long count) {
+		db.execSQL("INSERT OR IGNORE INTO daily_summary"
+				+ " (metric, day, min, max, sum, count)"
+				+ " VALUES (?, ?, ?, ?, 0, 0)", new Object[] { metric, day,
+				min, max });
+		db.execSQL("UPDATE daily_summary SET min = MIN(min, ?),"
+				+ " max = MAX(max, ?), sum = sum + ?, count = count + ?"
+				+ " WHERE metric = ? AND day = ?", new Object[] { min, max,
+				sum, count, metric, day });
+	}
+
+	/**
+	 * Returns the fraction of the database file taken up by free pages, e.g.
+	 * those left behind by compaction; {@link #vacuum()} would return them
+	 * to the filesystem.
+	 */
+	public double getFreeFraction() {
+		synchronized (dbHelper) {
+			SQLiteDatabase db = dbHelper.getReadableDatabase();
+			long free = queryLong(db, "PRAGMA freelist_count");
+			long pageSize = queryLong(db, "PRAGMA page_size");
+			long pages = new File(db.getPath()).length()
+					/ Math.max(1, pageSize);
+			return pages == 0 ? 0 : (double) free / pages;
+		}
+	}
+
+	/**
+	 * Runs a query (e.g. a PRAGMA) for a single integer, returning 0 if it
+	 * has no rows; needs the dbHelper lock.
+	 */
+	private static long queryLong(SQLiteDatabase db, String sql) {
+		Cursor c = db.rawQuery(sql, null);
+		try {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Has SQLite overwrite deleted content with zeros on this connection, so
+	 * that rows and summaries replaced by sealed ones don't linger in free
+	 * space; SQLite versions without the pragma ignore it. Needs the dbHelper
+	 * lock.
+	 */
+	private static void secureDelete(SQLiteDatabase db) {
+		queryLong(db, "PRAGMA secure_delete = ON");
+	}
+
+	/**
+	 * Rebuilds the database file to return pages freed by compaction to the
+	 * filesystem; {@link #reencrypt(int)} also runs it to drop the pages left
+	 * holding plaintext. This rewrites the whole file while holding the lock
+	 * every read and write waits on, so otherwise it should only be run when
+	 * {@link #getFreeFraction()} says enough of the file is free, and never
+	 * on the UI thread.
+	 * 
+	 * @return the number of bytes reclaimed, or -1 if the VACUUM failed
+	 */
+	public long vacuum() {
+		synchronized (dbHelper) {
+			try {
+				SQLiteDatabase db = dbHelper.getWritableDatabase();
+				File file = new File(db.getPath());
+				long before = file.length();
+				db.execSQL("VACUUM");
+				return before - file.length();
+			} catch (SQLException ex) {
+				Log.w(Diagnostics.TAG, "VACUUM failed", ex);
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Starts a low-priority background thread that compacts readings older
+	 * than the retention window and, once at least a quarter of the file is
+	 * free pages, vacuums the database. In steady state a day's worth of rows
+	 * is folded per day, which is not worth rewriting the file for. Does
+	 * nothing if a compaction is already in progress.
+	 * 
+	 * @param retainMillis
+	 *            how long to keep raw readings, in milliseconds
+	 */
+	public void compactInBackground(final long retainMillis) {
+		synchronized (this) {
+			if (compacting) {
+				return;
+			}
+			compacting = true;
+		}
+		new Thread("compaction") {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					long start = System.currentTimeMillis();
+					int folded = compactOldRecords(retainMillis,
+							DEFAULT_COMPACTION_BATCH);
+					if (folded > 0) {
+						long reclaimed = 0;
+						if (getFreeFraction() >= VACUUM_FREE_FRACTION) {
+							reclaimed = vacuum();
+						}
+						Log.i(Diagnostics.TAG, "compacted "
+								+ folded + " rows, reclaimed " + reclaimed
+								+ " bytes in "
+								+ (System.currentTimeMillis() - start) + "ms");
+					}
+				} finally {
+					compacting = false;
+				}
+			}
+		}.start();
+	}
+
+	/** Returns the value columns of a raw table. */
+	private static String[] valueColumns(String table) {
+		for (int i = 0; i < RAW_TABLES.length; ++i) {
+			if (RAW_TABLES[i][0].equals(table)) {
+				String[] columns = new String[RAW_TABLES[i].length - 1];
+				System.arraycopy(RAW_TABLES[i], 1, columns, 0, columns.length);
+				return columns;
+			}
+		}
+		throw new IllegalArgumentException("not a raw table: " + table);
+	}
+
+	/** Returns the position of a column among its table's value columns. */
+	private static int valueIndex(String table, String column) {
+		String[] columns = valueColumns(table);
+		for (int i = 0; i < columns.length; ++i) {
+			if (columns[i].equals(column)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException(table + " has no " + column);
+	}
+
+	/**
+	 * Returns whether encryption is enabled; needs the dbHelper lock. The
+	 * answer is cached, since it is checked on every write.
+	 */
+	private boolean isEncryptedLocked(SQLiteDatabase db) {
+		if (encrypted == null) {
+			Cursor c = db.rawQuery("SELECT COUNT(*) FROM crypto_settings",
+					null);
+			try {
+				encrypted = Boolean.valueOf(c.moveToFirst() && c.getInt(0) > 0);
+			} finally {
+				c.close();
+			}
+		}
+		return encrypted.booleanValue();
+	}
+
+	/**
+	 * Returns whether encrypted storage is enabled. If it is, nothing can be
+	 * written until {@link #unlock(char[])} has succeeded.
+	 */
+	public boolean isEncrypted() {
+		synchronized (dbHelper) {
+			return isEncryptedLocked(dbHelper.getReadableDatabase());
+		}
+	}
+
+	/** Returns whether the data keys are available. */
+	public boolean isUnlocked() {
+		synchronized (dbHelper) {
+			return activeKey != null;
+		}
+	}
+
+	/**
+	 * Returns the columns of a raw table that are sealed in encrypted mode:
+	 * its value columns, followed by any other column that would give a
+	 * reading away (the blood pressure context). The extra columns are NOT
+	 * NULL, so sealed rows hold 0 in them.
+	 */
+	private static String[] sealedColumns(String table) {
+		String[] values = valueColumns(table);
+		if (!"blood_pressure".equals(table)) {
+			return values;
+		}
+		String[] columns = new String[values.length + 1];
+		System.arraycopy(values, 0, columns, 0, values.length);
+		columns[values.length] = "context";
+		return columns;
+	}
+
+	/**
+	 * Returns a copy of a row's values with the sealed columns sealed under
+	 * the active key, and the record key replaced by its keyed hash; or null
+	 * if sealing failed. Needs the dbHelper lock.
+	 */
+	private ContentValues sealValues(String table, ContentValues plain) {
+		String[] columns = sealedColumns(table);
+		int valueCount = valueColumns(table).length;
+		ContentValues values = new ContentValues(plain);
+		int[] ints = new int[columns.length];
+		for (int i = 0; i < columns.length; ++i) {
+			ints[i] = plain.getAsInteger(columns[i]);
+			if (i < valueCount) {
+				values.putNull(columns[i]);
+			} else {
+				values.put(columns[i], 0);
+			}
+		}
+		int keyId = activeKey.getKeyId();
+		try {
+			values.put("sealed", activeKey.sealInts(ints, binding(table,
+					keyId, plain.getAsLong("created"))));
+		} catch (GeneralSecurityException ex) {
+			Log.e(Diagnostics.TAG, "sealing failed", ex);
+			return null;
+		}
+		values.put("key_id", keyId);
+		String key = plain.getAsString("record_key");
+		if (key != null) {
+			values.put("record_key", activeKey.keyedHash(key));
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the binding a value sealed under a data key is authenticated
+	 * with (see {@link FieldCipher#seal(byte[], String)}): the table it is
+	 * stored in, the clear columns identifying its row there, and the key id.
+	 * A sealed blob copied to another row, table or time, or relabelled with
+	 * another key_id, then fails to open.
+	 * 
+	 * @param identity
+	 *            the row's created time for a raw table; its metric and day
+	 *            for daily_summary and daily_sketch; nothing for crypto_keys
+	 */
+	private static String binding(String table, int keyId, Object... identity) {
+		StringBuilder sb = new StringBuilder(table);
+		for (Object part : identity) {
+			sb.append('/').append(part);
+		}
+		return sb.append('#').append(keyId).toString();
+	}
+
+	/**
+	 * Opens a sealed row's values; returns null (and logs) if the row can't be
+	 * opened, e.g. because its key is missing or it was moved from another
+	 * row. Needs the dbHelper lock.
+	 * 
+	 * @param table
+	 *            the table the row is in
+	 * @param identity
+	 *            the row's identity in it, see {@link #binding(String, int,
+	 *            Object...)}
+	 */
+	private int[] openValues(byte[] sealed, int keyId, String table,
+			Object... identity) {
+		FieldCipher key = dataKeys.get(keyId);
+		if (key == null) {
+			Log.w(Diagnostics.TAG, "no data key " + keyId);
+			return null;
+		}
+		try {
+			return key.openInts(sealed, binding(table, keyId, identity));
+		} catch (GeneralSecurityException ex) {
+			Log.w(Diagnostics.TAG, "corrupt sealed row", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Turns on encrypted storage, protected by the indicated passphrase, and
+	 * seals all existing readings, daily summaries and sketches. Sealing
+	 * existing rows is the same resumable pass as {@link #reencrypt(int)},
+	 * and can take a while on a large database, so this should not be called
+	 * on the UI thread. If the pass is interrupted, it is resumed in the
+	 * background after the next {@link #unlock(char[])}.
+	 * 
+	 * Sealing rewrites rows in place, so the plaintext they held is left in
+	 * the file's free space, as are the context totals this deletes. From now
+	 * on SQLite zeroes deleted content (where it supports secure_delete), and
+	 * a pass that completes ends with a VACUUM that rebuilds the file without
+	 * the old pages. Until then the plaintext remains readable from the raw
+	 * file; and neither step can reach copies the flash storage itself may
+	 * keep of blocks it has since remapped.
+	 * 
+	 * @param passphrase
+	 *            the passphrase to protect the data keys with
+	 * @return 'true' if encryption was enabled; 'false' if it already was, or
+	 *         if it could not be set up
+	 */
+	public boolean enableEncryption(char[] passphrase) {
+		synchronized (dbHelper) {
+			SQLiteDatabase db = dbHelper.getWritableDatabase();
+			if (isEncryptedLocked(db)) {
+				return false;
+			}
+			secureDelete(db);
+			byte[] salt = FieldCipher.newSalt();
+			db.beginTransaction();
+			try {
+				FieldCipher kek = FieldCipher.derive(passphrase, salt,
+						KDF_ITERATIONS);
+				FieldCipher key = FieldCipher.generate(1);
+				ContentValues settings = new ContentValues();
+				settings.put("salt", salt);
+				settings.put("iterations", KDF_ITERATIONS);
+				settings.put("reencrypt_state", REENCRYPT_PENDING);
+				db.insert("crypto_settings", null, settings);
+				// plaintext totals would give the sealed readings away
+				db.delete("bp_context_stats", null, null);
+				storeKey(db, kek, key);
+				db.setTransactionSuccessful();
+				encrypted = Boolean.TRUE;
+				dataKeys = new HashMap<Integer, FieldCipher>();
+				dataKeys.put(key.getKeyId(), key);
+				activeKey = key;
+			} catch (GeneralSecurityException ex) {
+				Log.e(Diagnostics.TAG, "key setup failed", ex);
+				return false;
+			} finally {
+				db.endTransaction();
+			}
+			recentKeys.clear();
+		}
+		return reencrypt(DEFAULT_COMPACTION_BATCH) >= 0;
+	}
+
+	/** Wraps a data key with the passphrase key and stores it. */
+	private static void storeKey(SQLiteDatabase db, FieldCipher kek,
+			FieldCipher key) throws GeneralSecurityException {
+		ContentValues values = new ContentValues();
+		values.put("key_id", key.getKeyId());
+		values.put("wrapped", kek.seal(key.getEncoded(), keyBinding(key
+				.getKeyId(), key.isBound())));
+		db.replace("crypto_keys", null, values);
+	}
+
+	/**
+	 * Returns the binding a wrapped data key is sealed with, or null for a
+	 * key wrapped before bindings existed.
+	 */
+	private static String keyBinding(int keyId, boolean bound) {
+		return bound ? binding("crypto_keys", keyId) : null;
+	}
+
+	/** Derives the passphrase key; needs the dbHelper lock. */
+	private static FieldCipher deriveKek(SQLiteDatabase db, char[] passphrase)
+			throws GeneralSecurityException {
+		Cursor c = db.rawQuery(
+				"SELECT salt, iterations FROM crypto_settings", null);
+		try {
+			if (!c.moveToFirst()) {
+				throw new GeneralSecurityException("encryption is not enabled");
+			}
+			return FieldCipher.derive(passphrase, c.getBlob(0), c.getInt(1));
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Unwraps the data keys of an encrypted database, making its readings
+	 * readable and writable. If a re-encryption pass was interrupted, it is
+	 * resumed on a background thread.
+	 * 
+	 * @param passphrase
+	 *            the passphrase encryption was enabled with (or last changed
+	 *            to)
+	 * @return 'true' if the database is now unlocked; 'false' if the
+	 *         passphrase is wrong or encryption is not enabled
+	 */
+	public boolean unlock(char[] passphrase) {
+		int state;
+		synchronized (dbHelper) {
+			SQLiteDatabase db = dbHelper.getWritableDatabase();
+			Map<Integer, FieldCipher> keys = new HashMap<Integer, FieldCipher>();
+			FieldCipher newest = null;
+			try {
+				FieldCipher kek = deriveKek(db, passphrase);
+				// keys below this were in use before bindings existed
+				long boundKeyId = queryLong(db,
+						"SELECT bound_key_id FROM crypto_settings");
+				Cursor c = db.rawQuery("SELECT key_id, wrapped FROM crypto_keys"
+						+ " ORDER BY key_id", null);
+				try {
+					while (c.moveToNext()) {
+						int keyId = c.getInt(0);
+						boolean bound = keyId >= boundKeyId;
+						newest = FieldCipher.fromEncoded(keyId, bound, kek.open(
+								c.getBlob(1), keyBinding(keyId, bound)));
+						keys.put(newest.getKeyId(), newest);
+					}
+				} finally {
+					c.close();
+				}
+				if (newest == null) {
+					return false;
+				}
+				state = (int) queryLong(db,
+						"SELECT reencrypt_state FROM crypto_settings");
+				if (state == REENCRYPT_ROTATE) {
+					// set by an upgrade; the passphrase is needed to rotate
+					FieldCipher key = FieldCipher
+							.generate(newest.getKeyId() + 1);
+					setReencryptState(db, kek, key, REENCRYPT_PENDING);
+					newest = key;
+					keys.put(key.getKeyId(), key);
+					state = REENCRYPT_PENDING;
+				}
+			} catch (GeneralSecurityException ex) {
+				return false;
+			}
+			dataKeys = keys;
+			activeKey = newest;
+			recentKeys.clear();
+			// results computed while locked are missing the sealed rows
+			cache.clear();
+		}
+		if (state != REENCRYPT_DONE) {
+			reencryptInBackground();
+		}
+		return true;
+	}
+
+	/**
+	 * Stores a new data key and records the re-encryption state, in one
+	 * transaction; needs the dbHelper lock.
+	 */
+	private static void setReencryptState(SQLiteDatabase db, FieldCipher kek,
+			FieldCipher key, int state) throws GeneralSecurityException {
+		db.beginTransaction();
+		try {
+			storeKey(db, kek, key);
+			ContentValues settings = new ContentValues();
+			settings.put("reencrypt_state", state);
+			db.update("crypto_settings", settings, null, null);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Starts a low-priority background thread that finishes an interrupted
+	 * {@link #reencrypt(int)} pass. Does nothing if one is already running.
+	 */
+	private void reencryptInBackground() {
+		synchronized (this) {
+			if (reencrypting) {
+				return;
+			}
+			reencrypting = true;
+		}
+		new Thread("reencryption") {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					int n = reencrypt(DEFAULT_COMPACTION_BATCH);
+					Log.i(Diagnostics.TAG, "resumed re-encryption"
+							+ " sealed " + n + " rows");
+				} finally {
+					reencrypting = false;
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Changes the passphrase of an unlocked database. Only the data keys are
+	 * re-wrapped, so this is quick regardless of how much data there is.
+	 * 
+	 * @return 'true' if the passphrase was changed
+	 */
+	public boolean changePassphrase(char[] newPassphrase) {
+		synchronized (dbHelper) {
+			if (dataKeys == null) {
+				return false;
+			}
+			SQLiteDatabase db = dbHelper.getWritableDatabase();
+			byte[] salt = FieldCipher.newSalt();
+			db.beginTransaction();
+			try {
+				FieldCipher kek = FieldCipher.derive(newPassphrase, salt,
+						KDF_ITERATIONS);
+				ContentValues settings = new ContentValues();
+				settings.put("salt", salt);
+				settings.put("iterations", KDF_ITERATIONS);
+				db.update("crypto_settings", settings, null, null);
+				for (FieldCipher key : dataKeys.values()) {
+					storeKey(db, kek, key);
+				}
+				db.setTransactionSuccessful();
+				return true;
+			} catch (GeneralSecurityException ex) {
+				Log.e(Diagnostics.TAG, "re-wrap failed", ex);
+				return false;
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * Generates a new data key, makes it the active one, and re-encrypts all
+	 * readings under it (see {@link #reencrypt(int)}). Once every row has
+	 * moved to the new key, the old keys are deleted.
+	 * 
+	 * @param passphrase
+	 *            the current passphrase, needed to wrap the new key
+	 * @return the number of rows re-encrypted, or -1 on failure
+	 */
+	public int rotateKey(char[] passphrase) {
+		synchronized (dbHelper) {
+			if (activeKey == null) {
+				return -1;
+			}
+			SQLiteDatabase db = dbHelper.getWritableDatabase();
+			try {
+				FieldCipher kek = deriveKek(db, passphrase);
+				// make sure the passphrase is the one wrapping the current key
+				Cursor c = db.rawQuery("SELECT wrapped FROM crypto_keys"
+						+ " WHERE key_id = ?", new String[] { Integer
+						.toString(activeKey.getKeyId()) });
+				try {
+					if (!c.moveToFirst()) {
+						return -1;
+					}
+					kek.open(c.getBlob(0), keyBinding(activeKey.getKeyId(),
+							activeKey.isBound()));
+				} finally {
+					c.close();
+				}
+				FieldCipher key = FieldCipher.generate(activeKey.getKeyId() + 1);
+				setReencryptState(db, kek, key, REENCRYPT_PENDING);
+				dataKeys.put(key.getKeyId(), key);
+				activeKey = key;
+				recentKeys.clear();
+			} catch (GeneralSecurityException ex) {
+				Log.w(Diagnostics.TAG, "key rotation failed", ex);
+				return -1;
+			}
+		}
+		return reencrypt(DEFAULT_COMPACTION_BATCH);
+	}
+
+	/**
+	 * Re-seals every reading, daily summary and daily sketch that is not
+	 * sealed under the active key: plain rows (after encryption is first
+	 * enabled) and rows under an older key (after {@link #rotateKey(char[])}).
+	 * Each table is paged through by rowid in transactions of at most
+	 * 'batchSize' rows, releasing the lock in between, so a pass reads every
+	 * row once. An interrupted pass is resumed after the next
+	 * {@link #unlock(char[])}. When nothing is left under an old key, the old
+	 * keys are deleted and the file is vacuumed, so that what the rows held
+	 * before is not left behind in free pages.
+	 * 
+	 * @param batchSize
+	 *            the maximum number of rows to re-seal per transaction
+	 * @return the number of readings re-sealed, or -1 on failure
+	 */
+	public int reencrypt(int batchSize) {
+		int keyId;
+		synchronized (dbHelper) {
+			if (activeKey == null) {
+				return -1;
+			}
+			keyId = activeKey.getKeyId();
+		}
+		int total = 0;
+		// the raw tables, then daily_summary, then daily_sketch
+		for (int step = 0; step < RAW_TABLES.length + 2; ++step) {
+			long[] lastId = new long[] { 0 };
+			int n;
+			do {
+				synchronized (dbHelper) {
+					if (activeKey == null) {
+						return -1;
+					}
+					SQLiteDatabase db = dbHelper.getWritableDatabase();
+					try {
+						if (step < RAW_TABLES.length) {
+							n = reencryptBatch(db, RAW_TABLES[step],
+									batchSize, lastId);
+							// the stored keys were rehashed
+							recentKeys.remove(RAW_TABLES[step][0]);
+						} else if (step == RAW_TABLES.length) {
+							n = reencryptSummaryBatch(db, batchSize, lastId);
+						} else {
+							n = reencryptSketchBatch(db, batchSize, lastId);
+						}
+					} catch (SQLException ex) {
+						Log.w(Diagnostics.TAG,
+								"re-encryption failed", ex);
+						return -1;
+					}
+				}
+				if (n < 0) {
+					return -1;
+				}
+				if (step < RAW_TABLES.length) {
+					total += n;
+				}
+			} while (n > 0);
+		}
+
+		synchronized (dbHelper) {
+			if (activeKey == null || activeKey.getKeyId() != keyId) {
+				// rotated again meanwhile; that pass finishes the job
+				return total;
+			}
+			SQLiteDatabase db = dbHelper.getWritableDatabase();
+			ContentValues settings = new ContentValues();
+			settings.put("reencrypt_state", REENCRYPT_DONE);
+			db.beginTransaction();
+			try {
+				db.delete("crypto_keys", "key_id != ?",
+						new String[] { Integer.toString(keyId) });
+				db.update("crypto_settings", settings, null, null);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			dataKeys.keySet().retainAll(Collections.singleton(keyId));
+		}
+		// drop the free pages still holding what was just resealed
+		vacuum();
+		return total;
+	}
+
+	/**
+	 * Re-seals the next batch of rows of one table under the active key;
+	 * needs the dbHelper lock. Besides rows under another key, this picks up
+	 * blood pressure rows sealed before the context was, whose context is
+	 * still in the clear.
+	 * 
+	 * @param lastId
+	 *            the _id the previous batch ended at; updated
+	 * @return the number of rows re-sealed, 0 if none are left, or -1 if a
+	 *         row could not be opened
+	 */
+	private int reencryptBatch(SQLiteDatabase db, String[] table,
+			int batchSize, long[] lastId) {
+		String name = table[0];
+		int valueCount = valueColumns(name).length;
+		String[] columns = sealedColumns(name);
+		StringBuilder select = new StringBuilder(
+				"SELECT _id, created, record_key, sealed, key_id");
+		for (String column : columns) {
+			select.append(", ").append(column);
+		}
+		select.append(" FROM ").append(name).append(
+				" WHERE _id > ? AND (key_id IS NULL OR key_id != ?");
+		for (int i = valueCount; i < columns.length; ++i) {
+			select.append(" OR ").append(columns[i]).append(" != 0");
+		}
+		select.append(") ORDER BY _id LIMIT ").append(batchSize);
+
+		int n = 0;
+		db.beginTransaction();
+		try {
+			Cursor c = db.rawQuery(select.toString(), new String[] {
+					Long.toString(lastId[0]),
+					Integer.toString(activeKey.getKeyId()) });
+			try {
+				while (c.moveToNext()) {
+					lastId[0] = c.getLong(0);
+					int[] opened = null;
+					if (!c.isNull(3)) {
+						opened = openValues(c.getBlob(3), c.getInt(4), name,
+								c.getLong(1));
+						if (opened == null) {
+							return -1;
+						}
+					}
+					ContentValues row = new ContentValues();
+					row.put("created", c.getLong(1)); // bound into the seal
+					int[] values = new int[valueCount];
+					for (int i = 0; i < columns.length; ++i) {
+						// a column not among the sealed values is in the clear
+						int value = opened != null && i < opened.length
+								? opened[i] : c.getInt(5 + i);
+						row.put(columns[i], value);
+						if (i < valueCount) {
+							values[i] = value;
+						}
+					}
+					// rows from before record keys existed stay without one
+					if (!c.isNull(2)) {
+						row.put("record_key", recordKey(name, c.getLong(1),
+								values));
+					}
+					row = sealValues(name, row);
+					if (row == null) {
+						return -1;
+					}
+					db.update(name, row, "_id = ?", new String[] { Long
+							.toString(c.getLong(0)) });
+					++n;
+				}
+			} finally {
+				c.close();
+			}
+			db.setTransactionSuccessful();
+			return n;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Re-seals the next batch of daily summaries under the active key, as
+	 * {min, max, sum, count}; needs the dbHelper lock.
+	 * 
+	 * @param lastId
+	 *            the rowid the previous batch ended at; updated
+	 * @return the number of summaries re-sealed, 0 if none are left, or -1 if
+	 *         a summary could not be opened
+	 */
+	private int reencryptSummaryBatch(SQLiteDatabase db, int batchSize,
+			long[] lastId) {
+		int n = 0;
+		db.beginTransaction();
+		try {
+			Cursor c = db.rawQuery("SELECT rowid, min, max, sum, count,"
+					+ " sealed, key_id, metric, day FROM daily_summary"
+					+ " WHERE rowid > ?"
+					+ " AND (key_id IS NULL OR key_id != ?) ORDER BY rowid"
+					+ " LIMIT " + batchSize, new String[] {
+					Long.toString(lastId[0]),
+					Integer.toString(activeKey.getKeyId()) });
+			try {
+				while (c.moveToNext()) {
+					lastId[0] = c.getLong(0);
+					int[] values;
+					if (c.isNull(5)) {
+						values = new int[] { c.getInt(1), c.getInt(2),
+								c.getInt(3), c.getInt(4) };
+					} else {
+						values = openValues(c.getBlob(5), c.getInt(6),
+								"daily_summary", c.getString(7), c.getLong(8));
+						if (values == null) {
+							return -1;
+						}
+					}
+					ContentValues row = new ContentValues();
+					row.putNull("min");
+					row.putNull("max");
+					row.putNull("sum");
+					row.putNull("count");
+					int keyId = activeKey.getKeyId();
+					try {
+						row.put("sealed", activeKey.sealInts(values, binding(
+								"daily_summary", keyId, c.getString(7), c
+										.getLong(8))));
+					} catch (GeneralSecurityException ex) {
+						Log.e(Diagnostics.TAG, "sealing failed",
+								ex);
+						return -1;
+					}
+					row.put("key_id", keyId);
+					db.update("daily_summary", row, "rowid = ?",
+							new String[] { Long.toString(c.getLong(0)) });
+					++n;
+				}
+			} finally {
+				c.close();
+			}
+			db.setTransactionSuccessful();
+			return n;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Re-seals the next batch of daily sketches under the active key; needs
+	 * the dbHelper lock.
+	 * 
+	 * @param lastId
+	 *            the rowid the previous batch ended at; updated
+	 * @return the number of sketches re-sealed, 0 if none are left, or -1 if
+	 *         a sketch could not be opened
+	 */
+	private int reencryptSketchBatch(SQLiteDatabase db, int batchSize,
+			long[] lastId) {
+		int n = 0;
+		db.beginTransaction();
+		try {
+			Cursor c = db.rawQuery("SELECT rowid, metric, day, sketch, key_id"
+					+ " FROM daily_sketch WHERE rowid > ?"
+					+ " AND (key_id IS NULL OR key_id != ?) ORDER BY rowid"
+					+ " LIMIT " + batchSize, new String[] {
+					Long.toString(lastId[0]),
+					Integer.toString(activeKey.getKeyId()) });
+			try {
+				while (c.moveToNext()) {
+					lastId[0] = c.getLong(0);
+					ValueSketch sketch = openSketch(c.getBlob(3),
+							c.isNull(4) ? null : Integer.valueOf(c.getInt(4)),
+							c.getString(1), c.getLong(2));
+					if (sketch == null) {
+						return -1;
+					}
+					storeSketch(db, c.getString(1), c.getLong(2), sketch,
+							activeKey);
+					++n;
+				}
+			} finally {
+				c.close();
+			}
+			db.setTransactionSuccessful();
+			return n;
+		} finally {
+			db.endTransaction();
 		}
-		return true;
 	}
 }
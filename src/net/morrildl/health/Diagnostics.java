@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+import android.app.Activity;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * The app's log tag, and the screen launch timing that every Activity uses.
+ */
+final class Diagnostics {
+	/**
+	 * Log tag for everything the app logs. Debug output, including screen
+	 * timing, is off unless the tag is enabled, e.g. via
+	 * "adb shell setprop log.tag.HealthMetrics DEBUG".
+	 */
+	static final String TAG = "HealthMetrics";
+
+	private Diagnostics() {
+	}
+
+	/**
+	 * Sets the Activity's content view, and if debug logging is enabled for
+	 * {@link #TAG}, logs one "launch-timing" line for the screen so that it
+	 * can be scraped by benchmark runs and compared across builds. The fields
+	 * are:
+	 * <ul>
+	 * <li>inflate: the inflate itself</li>
+	 * <li>to-predraw: from the end of the inflate to the first pre-draw
+	 * callback. This is not just measure/layout: it also includes the rest of
+	 * onCreate(), onStart(), onResume() and attaching the window.</li>
+	 * <li>draw: from the pre-draw callback until the traversal has finished
+	 * drawing</li>
+	 * </ul>
+	 *
+	 * @param activity
+	 *            the Activity whose content to set
+	 * @param layoutResID
+	 *            the layout to inflate
+	 */
+	static void setContentView(Activity activity, int layoutResID) {
+		if (!Log.isLoggable(TAG, Log.DEBUG)) {
+			activity.setContentView(layoutResID);
+			return;
+		}
+		final long start = SystemClock.uptimeMillis();
+		activity.setContentView(layoutResID);
+		final long inflated = SystemClock.uptimeMillis();
+		final String screen = activity.getClass().getSimpleName();
+		final View decor = activity.getWindow().getDecorView();
+		decor.getViewTreeObserver().addOnPreDrawListener(
+				new ViewTreeObserver.OnPreDrawListener() {
+					public boolean onPreDraw() {
+						final long preDraw = SystemClock.uptimeMillis();
+						decor.getViewTreeObserver().removeOnPreDrawListener(
+								this);
+						// runs once the traversal, including draw(), is done
+						decor.post(new Runnable() {
+							public void run() {
+								long drawn = SystemClock.uptimeMillis();
+								Log.d(TAG, "launch-timing screen=" + screen
+										+ " inflate=" + (inflated - start)
+										+ "ms to-predraw="
+										+ (preDraw - inflated) + "ms draw="
+										+ (drawn - preDraw) + "ms");
+							}
+						});
+						return true;
+					}
+				});
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+import java.util.Arrays;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.text.Editable;
+import android.text.method.PasswordTransformationMethod;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+
+/**
+ * The passphrase prompts for encrypted storage (see
+ * {@link DBUtil#enableEncryption(char[])}). Your application should call
+ * {@link Encryption#unlockIfNeeded(android.app.Activity)} in the onCreate()
+ * method of the first activity, since nothing can be saved to an encrypted
+ * database until it is unlocked, and offer
+ * {@link Encryption#showEncryption(android.app.Activity)} from a menu.
+ *
+ * Unlocking derives a key from the passphrase and enabling seals every stored
+ * reading, so both run off the UI thread.
+ */
+class Encryption {
+	/**
+	 * Asks for the passphrase if the database is encrypted and not yet
+	 * unlocked, and asks again while the passphrase is wrong. If the user
+	 * cancels, the database stays locked; saving a reading then fails until
+	 * it is unlocked from the menu.
+	 *
+	 * @param activity
+	 *            The Activity to show the prompt over.
+	 */
+	static void unlockIfNeeded(Activity activity) {
+		DBUtil dbUtil = DBUtil.getInstance(activity);
+		if (dbUtil.isEncrypted() && !dbUtil.isUnlocked()) {
+			showUnlock(activity);
+		}
+	}
+
+	/**
+	 * Offers what fits the database's state: turning encryption on, unlocking
+	 * it, or changing the passphrase.
+	 *
+	 * @param activity
+	 *            The Activity to show the prompt over.
+	 */
+	static void showEncryption(Activity activity) {
+		DBUtil dbUtil = DBUtil.getInstance(activity);
+		if (!dbUtil.isEncrypted()) {
+			showNewPassphrase(activity, true);
+		} else if (!dbUtil.isUnlocked()) {
+			showUnlock(activity);
+		} else {
+			showNewPassphrase(activity, false);
+		}
+	}
+
+	private static void showUnlock(final Activity activity) {
+		final EditText passphrase = passphraseField(activity,
+				R.string.encryption_passphrase_hint);
+		final AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+		builder.setTitle(R.string.encryption_unlock_title);
+		builder.setMessage(R.string.encryption_unlock_info);
+		builder.setView(passphrase);
+		builder.setPositiveButton(R.string.encryption_unlock_button,
+				new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						final char[] chars = take(passphrase.getText());
+						run(activity, "unlock", new Task() {
+							public boolean run(DBUtil dbUtil) {
+								return dbUtil.unlock(chars);
+							}
+
+							public void done(boolean ok) {
+								Arrays.fill(chars, '\0');
+								if (!ok) {
+									showMessage(activity,
+											R.string.encryption_wrong, true);
+								}
+							}
+						});
+					}
+				});
+		builder.setNegativeButton(R.string.dialog_cancel, null);
+		builder.create().show();
+	}
+
+	/**
+	 * Asks for a new passphrase, twice, then turns encryption on with it if
+	 * 'enable' is set, or else changes the passphrase to it.
+	 */
+	private static void showNewPassphrase(final Activity activity,
+			final boolean enable) {
+		final EditText passphrase = passphraseField(activity,
+				enable ? R.string.encryption_passphrase_hint
+						: R.string.encryption_new_hint);
+		final EditText again = passphraseField(activity,
+				R.string.encryption_again_hint);
+		LinearLayout fields = new LinearLayout(activity);
+		fields.setOrientation(LinearLayout.VERTICAL);
+		fields.addView(passphrase);
+		fields.addView(again);
+
+		final AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+		builder.setTitle(enable ? R.string.encryption_enable_title
+				: R.string.encryption_change_title);
+		builder.setMessage(enable ? R.string.encryption_enable_info
+				: R.string.encryption_change_info);
+		builder.setView(fields);
+		builder.setPositiveButton(enable ? R.string.encryption_enable_button
+				: R.string.encryption_change_button,
+				new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						final char[] chars = take(passphrase.getText());
+						char[] check = take(again.getText());
+						boolean match = chars.length > 0
+								&& Arrays.equals(chars, check);
+						Arrays.fill(check, '\0');
+						if (!match) {
+							Arrays.fill(chars, '\0');
+							showMessage(activity,
+									R.string.encryption_mismatch, false);
+							return;
+						}
+						run(activity, "passphrase", new Task() {
+							public boolean run(DBUtil dbUtil) {
+								return enable ? dbUtil.enableEncryption(chars)
+										: dbUtil.changePassphrase(chars);
+							}
+
+							public void done(boolean ok) {
+								Arrays.fill(chars, '\0');
+								showMessage(activity, outcome(activity,
+										enable, ok), false);
+							}
+						});
+					}
+				});
+		builder.setNegativeButton(R.string.dialog_cancel, null);
+		builder.create().show();
+	}
+
+	/** Picks the message for the outcome of enabling or changing. */
+	private static int outcome(Activity activity, boolean enable, boolean ok) {
+		if (ok) {
+			return enable ? R.string.encryption_enabled
+					: R.string.encryption_changed;
+		}
+		if (enable && DBUtil.getInstance(activity).isEncrypted()) {
+			// on, but the sealing pass stopped; it resumes at the next unlock
+			return R.string.encryption_incomplete;
+		}
+		return R.string.encryption_failed;
+	}
+
+	/** Work to do off the UI thread, and what to do with its outcome. */
+	private interface Task {
+		/** Called on a background thread. */
+		boolean run(DBUtil dbUtil);
+
+		/** Called on the UI thread with the result of run(). */
+		void done(boolean ok);
+	}
+
+	/** Runs a Task on a new thread, with a progress dialog up meanwhile. */
+	private static void run(final Activity activity, String name,
+			final Task task) {
+		final ProgressDialog progress = ProgressDialog.show(activity,
+				activity.getString(R.string.encryption_title), activity
+						.getString(R.string.encryption_working), true);
+		new Thread(name) {
+			@Override
+			public void run() {
+				final boolean ok = task.run(DBUtil.getInstance(activity));
+				activity.runOnUiThread(new Runnable() {
+					public void run() {
+						progress.dismiss();
+						task.done(ok);
+					}
+				});
+			}
+		}.start();
+	}
+
+	/**
+	 * Shows a message; if 'retryUnlock' is set, the unlock prompt is shown
+	 * again once it is dismissed.
+	 */
+	private static void showMessage(final Activity activity, int messageId,
+			boolean retryUnlock) {
+		final AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+		builder.setTitle(R.string.encryption_title);
+		builder.setMessage(messageId);
+		builder.setPositiveButton(R.string.bp_dismiss, !retryUnlock ? null
+				: new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						showUnlock(activity);
+					}
+				});
+		builder.create().show();
+	}
+
+	private static EditText passphraseField(Activity activity, int hintId) {
+		EditText field = new EditText(activity);
+		field.setSingleLine(true);
+		field.setHint(hintId);
+		field.setTransformationMethod(PasswordTransformationMethod
+				.getInstance());
+		return field;
+	}
+
+	/** Copies a passphrase out of a field, and clears the field. */
+	private static char[] take(Editable text) {
+		char[] chars = new char[text.length()];
+		for (int i = 0; i < chars.length; ++i) {
+			chars[i] = text.charAt(i);
+		}
+		text.clear();
+		return chars;
+	}
+}
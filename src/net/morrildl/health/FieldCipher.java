@@ -0,0 +1,264 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of individual database fields. Each sealed value is
+ * IV || AES-128-CBC ciphertext || HMAC-SHA256(binding || IV || ciphertext),
+ * i.e. encrypt-then-MAC with separate encryption and MAC keys. The binding
+ * is associated data naming where the value belongs (its table, row and key;
+ * see {@link #seal(byte[], String)}), so that a value moved elsewhere in the
+ * database fails to open. Keyed hashes (see
+ * {@link #keyedHash(String)}) use a third key, derived from the MAC key. A
+ * FieldCipher is used both for data keys (random, see {@link #generate(int)})
+ * and for the key that wraps them (derived from a passphrase, see
+ * {@link #derive(char[], byte[], int)}).
+ *
+ * Instances reuse their Cipher and Mac objects, and so are synchronized.
+ */
+class FieldCipher {
+	private static final int AES_KEY_BYTES = 16;
+	private static final int MAC_KEY_BYTES = 32;
+	private static final int IV_BYTES = 16;
+	private static final int MAC_BYTES = 32;
+	/** Length of {@link #keyedHash(String)} output, in bytes before hex. */
+	private static final int HASH_BYTES = 16;
+	/** Label the keyed-hash key is derived from the MAC key with. */
+	private static final byte[] HASH_KEY_LABEL = "keyed-hash".getBytes();
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final int keyId;
+	private final boolean bound;
+	private final byte[] material;
+	private final SecretKeySpec aesKey;
+	private final Mac mac;
+	private final Mac hashMac;
+	private final Cipher cipher;
+
+	private FieldCipher(int keyId, boolean bound, byte[] material)
+			throws GeneralSecurityException {
+		if (material.length != AES_KEY_BYTES + MAC_KEY_BYTES) {
+			throw new GeneralSecurityException("bad key length");
+		}
+		this.keyId = keyId;
+		this.bound = bound;
+		this.material = material;
+		aesKey = new SecretKeySpec(material, 0, AES_KEY_BYTES, "AES");
+		mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(material, AES_KEY_BYTES, MAC_KEY_BYTES,
+				"HmacSHA256"));
+		hashMac = Mac.getInstance("HmacSHA256");
+		hashMac.init(new SecretKeySpec(mac.doFinal(HASH_KEY_LABEL),
+				"HmacSHA256"));
+		cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+	}
+
+	/** Creates a cipher with a fresh random key. */
+	static FieldCipher generate(int keyId) throws GeneralSecurityException {
+		byte[] material = new byte[AES_KEY_BYTES + MAC_KEY_BYTES];
+		random.nextBytes(material);
+		return new FieldCipher(keyId, true, material);
+	}
+
+	/**
+	 * Recreates a cipher from the output of {@link #getEncoded()}.
+	 *
+	 * @param bound
+	 *            false for a key whose values were sealed before bindings
+	 *            existed; bindings are then ignored, for both sealing and
+	 *            opening, until its values are re-sealed under a new key
+	 */
+	static FieldCipher fromEncoded(int keyId, boolean bound, byte[] material)
+			throws GeneralSecurityException {
+		return new FieldCipher(keyId, bound, material);
+	}
+
+	/**
+	 * Derives a cipher from a passphrase with PBKDF2.
+	 *
+	 * @param passphrase
+	 *            the user's passphrase
+	 * @param salt
+	 *            a random salt, stored alongside the data
+	 * @param iterations
+	 *            the PBKDF2 iteration count
+	 */
+	static FieldCipher derive(char[] passphrase, byte[] salt, int iterations)
+			throws GeneralSecurityException {
+		PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations,
+				(AES_KEY_BYTES + MAC_KEY_BYTES) * 8);
+		try {
+			return new FieldCipher(0, true, SecretKeyFactory.getInstance(
+					"PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded());
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/** Returns a new random salt for {@link #derive(char[], byte[], int)}. */
+	static byte[] newSalt() {
+		byte[] salt = new byte[16];
+		random.nextBytes(salt);
+		return salt;
+	}
+
+	/** Returns the id this key is stored under. */
+	int getKeyId() {
+		return keyId;
+	}
+
+	/** Returns whether bindings are authenticated with this key's values. */
+	boolean isBound() {
+		return bound;
+	}
+
+	/** Returns the raw key material, for wrapping by another FieldCipher. */
+	byte[] getEncoded() {
+		return material.clone();
+	}
+
+	/**
+	 * Encrypts and authenticates a value.
+	 *
+	 * @param binding
+	 *            where the value will be stored, e.g. its table, row and key
+	 *            id; it is authenticated but not stored, so the same binding
+	 *            must be given to {@link #open(byte[], String)}. Null for
+	 *            none.
+	 */
+	synchronized byte[] seal(byte[] plaintext, String binding)
+			throws GeneralSecurityException {
+		byte[] iv = new byte[IV_BYTES];
+		random.nextBytes(iv);
+		cipher.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv));
+		int ctLength = cipher.getOutputSize(plaintext.length);
+		byte[] out = new byte[IV_BYTES + ctLength + MAC_BYTES];
+		System.arraycopy(iv, 0, out, 0, IV_BYTES);
+		ctLength = cipher.doFinal(plaintext, 0, plaintext.length, out,
+				IV_BYTES);
+		updateBinding(binding);
+		mac.update(out, 0, IV_BYTES + ctLength);
+		mac.doFinal(out, IV_BYTES + ctLength);
+		return out;
+	}
+
+	/**
+	 * Checks and decrypts a value produced by {@link #seal(byte[], String)}.
+	 *
+	 * @throws GeneralSecurityException
+	 *             if the value was not sealed with this key and binding, or
+	 *             was tampered with
+	 */
+	synchronized byte[] open(byte[] sealed, String binding)
+			throws GeneralSecurityException {
+		int ctLength = sealed.length - IV_BYTES - MAC_BYTES;
+		if (ctLength <= 0) {
+			throw new GeneralSecurityException("sealed value too short");
+		}
+		updateBinding(binding);
+		mac.update(sealed, 0, IV_BYTES + ctLength);
+		byte[] expected = mac.doFinal();
+		int diff = 0;
+		for (int i = 0; i < MAC_BYTES; ++i) {
+			diff |= expected[i] ^ sealed[IV_BYTES + ctLength + i];
+		}
+		if (diff != 0) {
+			throw new GeneralSecurityException("MAC check failed");
+		}
+		cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(sealed,
+				0, IV_BYTES));
+		return cipher.doFinal(sealed, IV_BYTES, ctLength);
+	}
+
+	/**
+	 * Feeds a binding to the MAC, length first so that it can't run into the
+	 * IV; nothing for none, or if this key predates bindings.
+	 */
+	private void updateBinding(String binding) {
+		if (binding == null || !bound) {
+			return;
+		}
+		byte[] bytes;
+		try {
+			bytes = binding.getBytes("UTF-8");
+		} catch (java.io.UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+		mac.update(new byte[] { (byte) (bytes.length >>> 24),
+				(byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8),
+				(byte) bytes.length });
+		mac.update(bytes);
+	}
+
+	/** Seals an array of ints, e.g. the value columns of one row. */
+	byte[] sealInts(int[] values, String binding)
+			throws GeneralSecurityException {
+		byte[] bytes = new byte[values.length * 4];
+		for (int i = 0; i < values.length; ++i) {
+			bytes[i * 4] = (byte) (values[i] >>> 24);
+			bytes[i * 4 + 1] = (byte) (values[i] >>> 16);
+			bytes[i * 4 + 2] = (byte) (values[i] >>> 8);
+			bytes[i * 4 + 3] = (byte) values[i];
+		}
+		return seal(bytes, binding);
+	}
+
+	/** Opens a value produced by {@link #sealInts(int[], String)}. */
+	int[] openInts(byte[] sealed, String binding)
+			throws GeneralSecurityException {
+		byte[] bytes = open(sealed, binding);
+		int[] values = new int[bytes.length / 4];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = ((bytes[i * 4] & 0xff) << 24)
+					| ((bytes[i * 4 + 1] & 0xff) << 16)
+					| ((bytes[i * 4 + 2] & 0xff) << 8)
+					| (bytes[i * 4 + 3] & 0xff);
+		}
+		return values;
+	}
+
+	/**
+	 * Returns a deterministic keyed hash of a string, as hex. Used where the
+	 * database has to compare values (e.g. the record_key unique index)
+	 * without storing them in the clear. The hash key is separate from the
+	 * MAC key, so hashes can't be mistaken for (or used to forge) MACs.
+	 */
+	synchronized String keyedHash(String value) {
+		byte[] hash;
+		try {
+			hash = hashMac.doFinal(value.getBytes("UTF-8"));
+		} catch (java.io.UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+		StringBuilder sb = new StringBuilder(HASH_BYTES * 2);
+		for (int i = 0; i < HASH_BYTES; ++i) {
+			sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
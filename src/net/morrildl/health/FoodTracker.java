@@ -33,10 +33,19 @@ import android.widget.CompoundButton.OnCheckedChangeListener;
 public class FoodTracker extends DataCollectorBaseActivity {
 	private Dialog computeDialog = null;
 
+	/*
+	 * View handles for the compute dialog and the main calories field, looked
+	 * up once rather than on every show/dismiss of the dialog.
+	 */
+	private EditText calories = null;
+	private EditText compKCal = null;
+	private EditText compFat = null;
+	private EditText compFiber = null;
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		setContentView(R.layout.food_tracker);
+		Diagnostics.setContentView(this, R.layout.food_tracker);
 		((Button) findViewById(R.id.compute_points_button))
 				.setOnClickListener(new View.OnClickListener() {
 					public void onClick(View v) {
@@ -52,7 +61,7 @@ public class FoodTracker extends DataCollectorBaseActivity {
 				});
 
 		final RadioButton pointsRB = (RadioButton) findViewById(R.id.points_radio);
-		final EditText calories = (EditText) findViewById(R.id.calories);
+		calories = (EditText) findViewById(R.id.calories);
 		((Button) findViewById(R.id.save_button))
 				.setOnClickListener(new View.OnClickListener() {
 					public void onClick(View v) {
@@ -77,13 +86,12 @@ public class FoodTracker extends DataCollectorBaseActivity {
 				});
 
 		final Button computePoints = (Button) findViewById(R.id.compute_points_button);
-		((RadioButton) findViewById(R.id.points_radio))
-				.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-					public void onCheckedChanged(CompoundButton buttonView,
-							boolean isChecked) {
-						computePoints.setEnabled(isChecked);
-					}
-				});
+		pointsRB.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+			public void onCheckedChanged(CompoundButton buttonView,
+					boolean isChecked) {
+				computePoints.setEnabled(isChecked);
+			}
+		});
 		computePoints.setEnabled(false);
 	}
 
@@ -102,24 +110,22 @@ public class FoodTracker extends DataCollectorBaseActivity {
 			computeDialog.setContentView(R.layout.compute_dialog);
 			computeDialog.setCancelable(true);
 			computeDialog.setTitle(R.string.compute_points_dialog_title);
+			compKCal = (EditText) computeDialog.findViewById(R.id.comp_pts_kcal);
+			compFat = (EditText) computeDialog.findViewById(R.id.comp_pts_fat);
+			compFiber = (EditText) computeDialog
+					.findViewById(R.id.comp_pts_fiber);
 			computeDialog.setOnDismissListener(new OnDismissListener() {
 				public void onDismiss(DialogInterface dialog) {
 					try {
-						int kCal = Integer.parseInt(((EditText) computeDialog
-								.findViewById(R.id.comp_pts_kcal)).getText()
+						int kCal = Integer.parseInt(compKCal.getText()
+								.toString());
+						int fatGrams = Integer.parseInt(compFat.getText()
+								.toString());
+						int fiberGrams = Integer.parseInt(compFiber.getText()
 								.toString());
-						int fatGrams = Integer
-								.parseInt(((EditText) computeDialog
-										.findViewById(R.id.comp_pts_fat))
-										.getText().toString());
-						int fiberGrams = Integer
-								.parseInt(((EditText) computeDialog
-										.findViewById(R.id.comp_pts_fiber))
-										.getText().toString());
 						Integer points = computePoints(kCal, fatGrams,
 								fiberGrams);
-						Editable x = ((EditText) findViewById(R.id.calories))
-								.getText();
+						Editable x = calories.getText();
 						x.replace(0, x.length(), points.toString());
 					} catch (NumberFormatException ex) {
 					}
@@ -132,12 +138,9 @@ public class FoodTracker extends DataCollectorBaseActivity {
 						}
 					});
 		}
-		((EditText) computeDialog.findViewById(R.id.comp_pts_kcal)).getText()
-				.clear();
-		((EditText) computeDialog.findViewById(R.id.comp_pts_fat)).getText()
-				.clear();
-		((EditText) computeDialog.findViewById(R.id.comp_pts_fiber)).getText()
-				.clear();
+		compKCal.getText().clear();
+		compFat.getText().clear();
+		compFiber.getText().clear();
 		computeDialog.show();
 	}
 
@@ -18,20 +18,29 @@ package net.morrildl.health;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.ImageButton;
 
 public class HealthMetrics extends Activity {
+	private static final int MENU_RETENTION = 1;
+	private static final int MENU_ENCRYPTION = 2;
+
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.main);
+        Diagnostics.setContentView(this, R.layout.main);
         
 		if (!getSharedPreferences(Eula.PREFERENCES_EULA, Activity.MODE_PRIVATE)
 				.getBoolean(Eula.PREFERENCE_EULA_ACCEPTED, false)) {
 			Eula.showEula(this);
 		}
+		Encryption.unlockIfNeeded(this);
+
+		// fold aged-out readings into daily summaries while the user is busy
+		Retention.compactIfEnabled(this);
         
         ((ImageButton)findViewById(R.id.heart_button)).setOnClickListener(new View.OnClickListener() {
 			public void onClick(View v) {
@@ -57,4 +66,26 @@ public class HealthMetrics extends Activity {
 			}        	
         });
     }
-}
\ No newline at end of file
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		super.onCreateOptionsMenu(menu);
+		menu.add(Menu.NONE, MENU_RETENTION, Menu.NONE, R.string.retention_menu);
+		menu.add(Menu.NONE, MENU_ENCRYPTION, Menu.NONE,
+				R.string.encryption_menu);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if (item.getItemId() == MENU_RETENTION) {
+			Retention.showRetentionChoice(this);
+			return true;
+		}
+		if (item.getItemId() == MENU_ENCRYPTION) {
+			Encryption.showEncryption(this);
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A size-bounded LRU cache of query results (e.g. daily series, and chart
+ * payloads encoded from them), each covering a range of days of one table.
+ * {@link DBUtil} drops the entries covering a day whenever a row is written
+ * to it, so a cached result is always what the query would return. This
+ * class is thread-safe.
+ */
+public class QueryCache {
+	/** A cached result, and the table and days it was computed from. */
+	private static class Entry {
+		final String table;
+		final long firstDay;
+		final long lastDay; // exclusive
+		final Object value;
+		final int bytes;
+
+		Entry(String table, long firstDay, long lastDay, Object value,
+				int bytes) {
+			this.table = table;
+			this.firstDay = firstDay;
+			this.lastDay = lastDay;
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+
+	private final int maxBytes;
+	private int bytes = 0;
+	private int hits = 0;
+	private int misses = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/**
+	 * @param maxBytes
+	 *            the approximate memory budget for cached results; least
+	 *            recently used entries are evicted beyond it
+	 */
+	public QueryCache(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/** Builds the cache key for a query over a range of days of a table. */
+	static String key(String table, String column, String resolution,
+			long firstDay, int days) {
+		return table + '/' + column + '/' + resolution + '/' + firstDay + '/'
+				+ days;
+	}
+
+	/** Returns a cached double[] series, or null (counted as a miss). */
+	synchronized double[] getSeries(String key) {
+		Object value = get(key);
+		return value == null ? null : ((double[]) value).clone();
+	}
+
+	/**
+	 * Returns a cached double[] series, or null, without counting the lookup;
+	 * for a series needed to build a result whose own lookup was counted.
+	 */
+	synchronized double[] peekSeries(String key) {
+		Entry entry = entries.get(key);
+		return entry == null ? null : ((double[]) entry.value).clone();
+	}
+
+	/** Returns a cached String payload, or null (counted as a miss). */
+	synchronized String getString(String key) {
+		return (String) get(key);
+	}
+
+	private Object get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			++misses;
+			return null;
+		}
+		++hits;
+		return entry.value;
+	}
+
+	/** Caches a series covering days [firstDay, firstDay + series.length). */
+	synchronized void putSeries(String key, String table, long firstDay,
+			double[] series) {
+		put(key, new Entry(table, firstDay, firstDay + series.length, series
+				.clone(), series.length * 8));
+	}
+
+	/** Caches a String payload covering days [firstDay, firstDay + days). */
+	synchronized void putString(String key, String table, long firstDay,
+			int days, String payload) {
+		put(key, new Entry(table, firstDay, firstDay + days, payload, payload
+				.length() * 2));
+	}
+
+	private void put(String key, Entry entry) {
+		if (entry.bytes > maxBytes) {
+			return;
+		}
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			bytes -= old.bytes;
+		}
+		bytes += entry.bytes;
+		Iterator<Entry> lru = entries.values().iterator();
+		while (bytes > maxBytes && lru.hasNext()) {
+			bytes -= lru.next().bytes;
+			lru.remove();
+		}
+	}
+
+	/**
+	 * Drops every entry for the indicated table whose range covers the
+	 * indicated day.
+	 */
+	synchronized void invalidate(String table, long day) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.table.equals(table) && day >= entry.firstDay
+					&& day < entry.lastDay) {
+				bytes -= entry.bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/** Drops every entry. */
+	synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/** Returns the number of lookups answered from the cache. */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/** Returns the number of lookups that had to go to the database. */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/** Returns the approximate memory held by cached results, in bytes. */
+	public synchronized int getBytes() {
+		return bytes;
+	}
+}
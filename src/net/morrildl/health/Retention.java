@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
+
+/**
+ * Holds the user's choice of how long to keep individual readings. Readings
+ * older than that are folded into daily summaries and deleted, which can't be
+ * undone, so nothing is compacted until the user picks a retention period
+ * via {@link Retention#showRetentionChoice(android.app.Activity)}.
+ */
+class Retention {
+	public static final String PREFERENCE_RETENTION_DAYS = "retention.days";
+	public static final String PREFERENCES_RETENTION = "retention";
+
+	/**
+	 * The retention periods offered, in days, in the order of the
+	 * retention_choices array; 0 keeps every reading.
+	 */
+	private static final int[] CHOICES = { 0, 365, 2 * 365, 5 * 365 };
+
+	/**
+	 * Starts compacting readings older than the chosen retention period, if
+	 * the user has chosen one. This method should be called from the
+	 * onCreate() method of your main Activity.
+	 *
+	 * @param activity
+	 *            The Activity whose preferences hold the choice.
+	 */
+	static void compactIfEnabled(Activity activity) {
+		int days = activity.getSharedPreferences(PREFERENCES_RETENTION,
+				Activity.MODE_PRIVATE).getInt(PREFERENCE_RETENTION_DAYS, 0);
+		if (days > 0) {
+			DBUtil.getInstance(activity).compactInBackground(
+					days * DBUtil.DAY_MILLIS);
+		}
+	}
+
+	/**
+	 * Lets the user choose how long to keep individual readings, and starts
+	 * compacting right away if they choose a limit.
+	 *
+	 * @param activity
+	 *            The Activity to show the choice over.
+	 */
+	static void showRetentionChoice(final Activity activity) {
+		final SharedPreferences preferences = activity.getSharedPreferences(
+				PREFERENCES_RETENTION, Activity.MODE_PRIVATE);
+		int current = 0;
+		int days = preferences.getInt(PREFERENCE_RETENTION_DAYS, 0);
+		for (int i = 0; i < CHOICES.length; ++i) {
+			if (CHOICES[i] == days) {
+				current = i;
+			}
+		}
+
+		final AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+		builder.setTitle(R.string.retention_title);
+		builder.setSingleChoiceItems(R.array.retention_choices, current,
+				new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						preferences.edit().putInt(PREFERENCE_RETENTION_DAYS,
+								CHOICES[which]).commit();
+						dialog.dismiss();
+						compactIfEnabled(activity);
+					}
+				});
+		builder.setNegativeButton(R.string.dialog_cancel, null);
+		builder.create().show();
+	}
+}
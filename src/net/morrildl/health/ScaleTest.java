@@ -0,0 +1,164 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Loads {@link SyntheticHistory} at 1x, 10x and 100x a heavy user into
+ * scratch databases, plain and encrypted, and logs insert rate, database size,
+ * query, chart export and analysis latency, and heap use for each. Each scale
+ * is also loaded with duplicate checks off, and for each scale the overhead
+ * of duplicate checks (target: under 10% of insert throughput) and of
+ * encryption (target: under 15% of insert and scan throughput) is logged.
+ * The user's own database is never touched.
+ *
+ * This is an instrumentation rather than something an Activity starts, so
+ * that only a developer with adb can run it:
+ *
+ * <pre>
+ * adb shell am instrument -w net.morrildl.health/.ScaleTest
+ * </pre>
+ *
+ * and collect the "scale-test" lines logged under the HealthMetrics tag.
+ */
+public class ScaleTest extends Instrumentation {
+	private static final int[] SCALES = new int[] { 1, 10, 100 };
+	private static final int YEARS = 3;
+	private static final long SEED = 2009;
+	/** The day after the last generated day: 1 June 2009, in UTC. */
+	private static final long END_DAY = 14396;
+	private static final char[] PASSPHRASE = "scale-test".toCharArray();
+
+	private Context context;
+
+	@Override
+	public void onCreate(Bundle arguments) {
+		super.onCreate(arguments);
+		// runs onStart() on a thread of its own
+		start();
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		context = getTargetContext();
+		for (int i = 0; i < SCALES.length; ++i) {
+			long[] unchecked = runTier(SCALES[i], false, false);
+			long[] plain = runTier(SCALES[i], false, true);
+			long[] encrypted = runTier(SCALES[i], true, true);
+			if (unchecked != null && plain != null) {
+				Log.i(Diagnostics.TAG, "scale-test scale="
+						+ SCALES[i] + " dedup-overhead insert="
+						+ overhead(unchecked[0], plain[0]) + "%");
+			}
+			if (plain != null && encrypted != null) {
+				Log.i(Diagnostics.TAG, "scale-test scale="
+						+ SCALES[i] + " encryption-overhead insert="
+						+ overhead(plain[0], encrypted[0]) + "% scan="
+						+ overhead(encrypted[1], plain[1]) + "%");
+			}
+		}
+		finish(Activity.RESULT_OK, new Bundle());
+	}
+
+	/**
+	 * Returns how much lower a rate is than a baseline rate, in percent. For
+	 * times, pass them the other way around.
+	 */
+	private static long overhead(long baseline, long rate) {
+		return 100 - rate * 100 / Math.max(1, baseline);
+	}
+
+	/**
+	 * Loads and measures one scratch database.
+	 *
+	 * @return the insert rate in rows per second, and the cold scan time in
+	 *         microseconds; or null if the tier failed
+	 */
+	private long[] runTier(int scale, boolean encrypted, boolean dedup) {
+		String name = "scale-test-" + scale + (encrypted ? "-encrypted" : "")
+				+ (dedup ? "" : "-unchecked");
+		context.deleteDatabase(name);
+		DBUtil db = DBUtil.openScratchDatabase(context, name);
+		try {
+			db.setDuplicateChecks(dedup);
+			if (encrypted && !db.enableEncryption(PASSPHRASE)) {
+				Log.w(Diagnostics.TAG, "scale-test " + name
+						+ ": could not enable encryption");
+				return null;
+			}
+			int days = YEARS * 365;
+			long firstDay = END_DAY - days;
+
+			long start = SystemClock.uptimeMillis();
+			DBUtil.Batch batch = new SyntheticHistory(SEED, scale).load(db,
+					END_DAY, days);
+			long loadMillis = SystemClock.uptimeMillis() - start;
+			if (batch == null) {
+				Log.w(Diagnostics.TAG, "scale-test " + name
+						+ ": load failed");
+				return null;
+			}
+
+			long nanos = System.nanoTime();
+			double[] weight = db.getDailySeries("weight", "weight", firstDay,
+					days, true);
+			long coldMicros = (System.nanoTime() - nanos) / 1000;
+			nanos = System.nanoTime();
+			db.getDailySeries("weight", "weight", firstDay, days, true);
+			long warmMicros = (System.nanoTime() - nanos) / 1000;
+
+			start = SystemClock.uptimeMillis();
+			db.getEncodedDailySeries("blood_pressure", "systolic", firstDay,
+					days, true);
+			long exportMillis = SystemClock.uptimeMillis() - start;
+
+			start = SystemClock.uptimeMillis();
+			double[] intake = db.getDailySeries("calories", "calories",
+					firstDay, days, false);
+			new TrendAnalyzer(firstDay, intake, weight).analyze(30, 90, 70);
+			long analyzeMillis = SystemClock.uptimeMillis() - start;
+
+			// sample live objects only, not garbage awaiting collection
+			Runtime runtime = Runtime.getRuntime();
+			runtime.gc();
+			runtime.runFinalization();
+			runtime.gc();
+			long heap = runtime.totalMemory() - runtime.freeMemory();
+			long rate = batch.getInserted() * 1000L / Math.max(1, loadMillis);
+			Log.i(Diagnostics.TAG, "scale-test scale=" + scale
+					+ " encrypted=" + encrypted + " dedup=" + dedup + " rows="
+					+ batch.getInserted() + " duplicates="
+					+ batch.getDuplicates() + " insert=" + rate
+					+ "rows/s size=" + (db.getDatabaseSize() / 1024)
+					+ "KB query-cold=" + coldMicros + "us query-warm="
+					+ warmMicros + "us export=" + exportMillis + "ms analyze="
+					+ analyzeMillis + "ms heap=" + (heap / 1024) + "KB");
+			return new long[] { rate, coldMicros };
+		} finally {
+			db.close();
+			context.deleteDatabase(name);
+		}
+	}
+}
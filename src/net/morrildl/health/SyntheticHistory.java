@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+import java.util.Random;
+
+/**
+ * Generates plausible, deterministic multi-year histories for all four
+ * tables, for scale testing. The same seed always produces the same rows.
+ *
+ * At scale 1 the history is that of a heavy user: a morning weigh-in on most
+ * days, two or three blood pressure readings a day, and eight or so food
+ * entries a day. Higher scales multiply the number of entries per day.
+ * Weight follows a random walk nudged by the day's calorie surplus; blood
+ * pressure follows a diurnal curve (low overnight, highest in the afternoon)
+ * plus noise.
+ *
+ * Days are laid out in UTC rather than the device's time zone, so that the
+ * rows generated for a given seed and end day are the same on every device.
+ */
+class SyntheticHistory {
+	/** Food entries per day at scale 1. */
+	private static final int FOOD_PER_DAY = 8;
+	/** Blood pressure readings per day at scale 1. */
+	private static final int BP_PER_DAY = 3;
+	/** kCal of surplus per kg gained. */
+	private static final double KCAL_PER_KG = 7700;
+	/** Records per {@link DBUtil.Batch} commit. */
+	private static final int BATCH_SIZE = 1000;
+
+	private final Random random;
+	private final int scale;
+
+	/**
+	 * @param seed
+	 *            the random seed; equal seeds give equal histories
+	 * @param scale
+	 *            the multiple of a heavy user's daily entries to generate
+	 */
+	SyntheticHistory(long seed, int scale) {
+		this.random = new Random(seed);
+		this.scale = scale;
+	}
+
+	/**
+	 * Generates 'days' days of history ending on the day before 'endDay', and
+	 * loads it through the indicated database's batch interface.
+	 *
+	 * @param dbUtil
+	 *            the database to load into
+	 * @param endDay
+	 *            the UTC day (since the epoch) after the last generated day
+	 * @param days
+	 *            the number of days to generate
+	 * @return the finished batch, for its inserted and duplicate counts; or
+	 *         null if a commit failed
+	 */
+	DBUtil.Batch load(DBUtil dbUtil, long endDay, int days) {
+		DBUtil.Batch batch = dbUtil.newBatch();
+		double kg = 80 + random.nextGaussian() * 10;
+		double maintenance = 2200 + random.nextGaussian() * 200;
+		for (long day = endDay - days; day < endDay; ++day) {
+			long midnight = day * DBUtil.DAY_MILLIS;
+			int eaten = 0;
+
+			int entries = scale * (FOOD_PER_DAY - 2 + random.nextInt(5));
+			for (int i = 0; i < entries; ++i) {
+				// spread between 07:00 and 23:00
+				long when = midnight + hours(7 + random.nextDouble() * 16);
+				// smaller portions at higher scales, so weight stays sane
+				int kCal = Math.max(1, (50 + random.nextInt(550)) / scale);
+				eaten += kCal;
+				if (random.nextInt(10) == 0) {
+					batch.addPointsRecord(Math.max(1, kCal / 50), when);
+				} else {
+					batch.addCaloriesRecord(kCal, when);
+				}
+			}
+
+			int weighIns = random.nextInt(10) < 7 ? scale : 0;
+			double weighWindow = scale == 1 ? 2 : 16;
+			for (int i = 0; i < weighIns; ++i) {
+				long when = midnight
+						+ hours(6 + random.nextDouble() * weighWindow);
+				batch.addWeightRecord((int) Math.round(kg + random
+						.nextGaussian() * 0.4), when);
+			}
+			kg += (eaten - maintenance) / KCAL_PER_KG + random.nextGaussian()
+					* 0.05;
+
+			int readings = scale * (BP_PER_DAY - 1 + random.nextInt(2));
+			for (int i = 0; i < readings; ++i) {
+				double hour = random.nextDouble() * 24;
+				// trough around 03:00, peak around 15:00
+				double diurnal = -Math.cos((hour - 3) / 24 * 2 * Math.PI);
+				int context = hour < 9 ? DBUtil.BP_CONTEXT_RESTING : (random
+						.nextInt(4) == 0 ? DBUtil.BP_CONTEXT_EXERCISING
+						: DBUtil.BP_CONTEXT_ACTIVE);
+				batch.addBloodPressureRecord((int) Math.round(122 + 10
+						* diurnal + random.nextGaussian() * 6), (int) Math
+						.round(78 + 6 * diurnal + random.nextGaussian() * 4),
+						context, midnight + hours(hour));
+			}
+
+			if (batch.size() >= BATCH_SIZE && !batch.commit()) {
+				return null;
+			}
+		}
+		return batch.commit() ? batch : null;
+	}
+
+	private static long hours(double hours) {
+		return (long) (hours * 60 * 60 * 1000);
+	}
+}
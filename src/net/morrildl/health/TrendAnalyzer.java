@@ -0,0 +1,514 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Relates calorie intake to weight trend. Both series are aligned on day
+ * buckets (see {@link DBUtil#getDailySeries(String, String, long, int,
+ * boolean)}); weight readings are sparse, so for the lagged correlations and
+ * the goal projection weight is linearly interpolated between readings. The
+ * regressions of weight change on intake instead use the intervals between
+ * actual weigh-ins, since interpolated daily changes flatten the slope when
+ * weigh-ins are sparse.
+ *
+ * The analysis itself is plain arithmetic over double arrays. The lagged
+ * correlations are independent per lag, so on long histories they are split
+ * across a small thread pool. Use {@link Task} to load and analyze off the UI
+ * thread.
+ */
+public class TrendAnalyzer {
+	/** Histories shorter than this many days are analyzed on one thread. */
+	private static final int PARALLEL_THRESHOLD_DAYS = 2 * 365;
+
+	/** The results of an analysis. */
+	public static class Result {
+		/**
+		 * Correlation between a day's intake and the weight change over the
+		 * following days; element i holds the correlation for a change over
+		 * i + 1 days. NaN where there was too little data.
+		 */
+		public double[] lagCorrelation;
+
+		/**
+		 * Slope of daily weight change (kg) against daily intake (kCal),
+		 * regressed over the weigh-in intervals ending within the trailing
+		 * window ending at each day. NaN where there was too little data.
+		 */
+		public double[] rollingKgPerKCal;
+
+		/**
+		 * The daily intake at which weight is estimated to hold steady, from a
+		 * regression over the whole history; NaN if it can't be estimated.
+		 */
+		public double maintenanceKCal = Double.NaN;
+
+		/**
+		 * The day (since the epoch) on which the goal weight is projected to be
+		 * reached at the recent trend, or -1 if the trend is moving away from
+		 * the goal.
+		 */
+		public long goalDay = -1;
+	}
+
+	/** Receives the result of a {@link Task}, on the Handler's thread. */
+	public interface Callback {
+		void onResult(Result result);
+	}
+
+	private final long firstDay;
+	private final double[] intake;
+	private final double[] weight;
+	private volatile boolean cancelled = false;
+
+	/*
+	 * The intervals between consecutive weigh-ins that have some intake
+	 * logged, in order: the day each ends on, its length in days, the mean
+	 * daily intake over it and the mean daily weight change across it.
+	 */
+	private final int[] intervalEnd;
+	private final int[] intervalDays;
+	private final double[] intervalIntake;
+	private final double[] intervalChange;
+	private final int intervals;
+
+	/**
+	 * @param firstDay
+	 *            the day (since the epoch) that index 0 of the arrays refers to
+	 * @param intake
+	 *            daily kCal eaten, NaN for days with nothing logged
+	 * @param weight
+	 *            daily weight in kg, NaN for days with no reading
+	 */
+	public TrendAnalyzer(long firstDay, double[] intake, double[] weight) {
+		if (intake.length != weight.length) {
+			throw new IllegalArgumentException("series must be aligned");
+		}
+		this.firstDay = firstDay;
+		this.intake = intake;
+		this.weight = interpolate(weight);
+
+		int n = 0;
+		for (double w : weight) {
+			if (!Double.isNaN(w)) {
+				++n;
+			}
+		}
+		intervalEnd = new int[n];
+		intervalDays = new int[n];
+		intervalIntake = new double[n];
+		intervalChange = new double[n];
+		n = 0;
+		int prev = -1;
+		for (int d = 0; d < weight.length; ++d) {
+			if (Double.isNaN(weight[d])) {
+				continue;
+			}
+			if (prev >= 0) {
+				// the weight change from prev to d is due to days prev..d-1
+				int logged = 0;
+				double sum = 0;
+				for (int e = prev; e < d; ++e) {
+					if (!Double.isNaN(intake[e])) {
+						++logged;
+						sum += intake[e];
+					}
+				}
+				if (logged > 0) {
+					intervalEnd[n] = d;
+					intervalDays[n] = d - prev;
+					intervalIntake[n] = sum / logged;
+					intervalChange[n] = (weight[d] - weight[prev]) / (d - prev);
+					++n;
+				}
+			}
+			prev = d;
+		}
+		intervals = n;
+	}
+
+	/**
+	 * Stops a running {@link #analyze(int, int, double)} at its next check;
+	 * the analysis then throws CancellationException.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Runs the full analysis.
+	 *
+	 * @param maxLag
+	 *            the longest weight-change horizon to correlate, in days
+	 * @param window
+	 *            the trailing window for the rolling regression and the goal
+	 *            projection, in days
+	 * @param goalKg
+	 *            the goal weight, in kg
+	 * @return the analysis results
+	 * @throws CancellationException
+	 *             if {@link #cancel()} was called
+	 */
+	public Result analyze(int maxLag, int window, double goalKg) {
+		Result result = new Result();
+		result.lagCorrelation = laggedCorrelation(maxLag);
+		checkCancelled();
+		result.rollingKgPerKCal = rollingRegression(window);
+		checkCancelled();
+
+		double[] fit = regress();
+		if (fit != null && fit[0] != 0) {
+			result.maintenanceKCal = -fit[1] / fit[0];
+		}
+		result.goalDay = projectGoalDay(window, goalKg);
+		return result;
+	}
+
+	private void checkCancelled() {
+		if (cancelled || Thread.currentThread().isInterrupted()) {
+			throw new CancellationException();
+		}
+	}
+
+	/** Computes correlations for lags 1..maxLag, in parallel if worthwhile. */
+	private double[] laggedCorrelation(int maxLag) {
+		final double[] out = new double[maxLag];
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (intake.length < PARALLEL_THRESHOLD_DAYS || threads < 2
+				|| maxLag < 2) {
+			for (int lag = 1; lag <= maxLag; ++lag) {
+				out[lag - 1] = correlation(lag);
+				checkCancelled();
+			}
+			return out;
+		}
+
+		threads = Math.min(threads, maxLag);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> parts = new ArrayList<Future<Object>>();
+			for (int t = 0; t < threads; ++t) {
+				final int start = t + 1;
+				final int stride = threads;
+				final int last = maxLag;
+				parts.add(pool.submit(new Callable<Object>() {
+					public Object call() {
+						// interleave lags so each thread gets a similar load
+						for (int lag = start; lag <= last; lag += stride) {
+							out[lag - 1] = correlation(lag);
+							checkCancelled();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> part : parts) {
+				part.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return out;
+	}
+
+	/**
+	 * Pearson correlation between intake on day d and the weight change from
+	 * day d to day d + lag, over all days where both are known.
+	 */
+	private double correlation(int lag) {
+		int n = 0;
+		double sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+		for (int d = 0; d + lag < intake.length; ++d) {
+			double x = intake[d];
+			double y = weight[d + lag] - weight[d];
+			if (Double.isNaN(x) || Double.isNaN(y)) {
+				continue;
+			}
+			++n;
+			sx += x;
+			sy += y;
+			sxx += x * x;
+			syy += y * y;
+			sxy += x * y;
+		}
+		if (n < 3) {
+			return Double.NaN;
+		}
+		double cov = n * sxy - sx * sy;
+		double var = (n * sxx - sx * sx) * (n * syy - sy * sy);
+		return var > 0 ? cov / Math.sqrt(var) : Double.NaN;
+	}
+
+	/**
+	 * Regresses weight change on intake over the weigh-in intervals ending
+	 * within a trailing window ending at each day, maintaining the sums
+	 * incrementally as the window slides.
+	 */
+	private double[] rollingRegression(int window) {
+		int days = intake.length;
+		double[] out = new double[days];
+		WeightedFit fit = new WeightedFit();
+		int next = 0, old = 0;
+		for (int d = 0; d < days; ++d) {
+			while (next < intervals && intervalEnd[next] <= d) {
+				fit.add(next++, 1);
+			}
+			while (old < next && intervalEnd[old] <= d - window) {
+				fit.add(old++, -1);
+			}
+			out[d] = fit.slope();
+			if ((d & 1023) == 0) {
+				checkCancelled();
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Least-squares fit of the mean daily weight change across each weigh-in
+	 * interval against the mean intake over it, over the whole history.
+	 *
+	 * @return { slope, intercept }, or null if there is too little data
+	 */
+	private double[] regress() {
+		WeightedFit fit = new WeightedFit();
+		for (int i = 0; i < intervals; ++i) {
+			fit.add(i, 1);
+		}
+		double slope = fit.slope();
+		if (Double.isNaN(slope)) {
+			return null;
+		}
+		return new double[] { slope, (fit.sy - slope * fit.sx) / fit.w };
+	}
+
+	/**
+	 * Running sums for a least-squares fit over weigh-in intervals, each
+	 * weighted by its length in days: a change measured over a week carries
+	 * as much information as seven daily ones.
+	 */
+	private class WeightedFit {
+		int n = 0;
+		double w = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+
+		/** Adds interval i to the fit if sign is 1, removes it if -1. */
+		void add(int i, int sign) {
+			double x = intervalIntake[i], y = intervalChange[i];
+			double weight = sign * intervalDays[i];
+			n += sign;
+			w += weight;
+			sx += weight * x;
+			sy += weight * y;
+			sxx += weight * x * x;
+			sxy += weight * x * y;
+		}
+
+		/** Returns the fitted slope, or NaN if there is too little data. */
+		double slope() {
+			double denom = w * sxx - sx * sx;
+			// relative, since sums maintained by subtraction drift
+			if (n < 3 || denom <= 1e-9 * w * sxx) {
+				return Double.NaN;
+			}
+			return (w * sxy - sx * sy) / denom;
+		}
+	}
+
+	/**
+	 * Fits a line to weight over the trailing window and extrapolates it to
+	 * the goal weight.
+	 */
+	private long projectGoalDay(int window, double goalKg) {
+		int last = weight.length - 1;
+		while (last >= 0 && Double.isNaN(weight[last])) {
+			--last;
+		}
+		if (last < 0) {
+			return -1;
+		}
+		if (weight[last] == goalKg) {
+			return firstDay + last;
+		}
+		int n = 0;
+		double st = 0, sw = 0, stt = 0, stw = 0;
+		for (int d = Math.max(0, last - window + 1); d <= last; ++d) {
+			if (Double.isNaN(weight[d])) {
+				continue;
+			}
+			++n;
+			st += d;
+			sw += weight[d];
+			stt += (double) d * d;
+			stw += d * weight[d];
+		}
+		double denom = n * stt - st * st;
+		if (n < 2 || denom <= 0) {
+			return -1;
+		}
+		double perDay = (n * stw - st * sw) / denom;
+		if (perDay == 0) {
+			return -1;
+		}
+		double toGo = (goalKg - weight[last]) / perDay;
+		if (toGo < 0) {
+			return -1;
+		}
+		return firstDay + last + (long) Math.ceil(toGo);
+	}
+
+	/**
+	 * Fills the gaps between known readings by linear interpolation. Days
+	 * before the first or after the last reading stay NaN.
+	 */
+	static double[] interpolate(double[] series) {
+		double[] out = new double[series.length];
+		int prev = -1;
+		for (int d = 0; d < series.length; ++d) {
+			out[d] = Double.NaN;
+			if (Double.isNaN(series[d])) {
+				continue;
+			}
+			out[d] = series[d];
+			if (prev >= 0) {
+				double step = (series[d] - series[prev]) / (d - prev);
+				for (int g = prev + 1; g < d; ++g) {
+					out[g] = series[prev] + step * (g - prev);
+				}
+			}
+			prev = d;
+		}
+		return out;
+	}
+
+	/**
+	 * Loads the intake and weight history from the database and analyzes it
+	 * on a background thread, then delivers the result to a Handler. Intake
+	 * is taken from the calories table; diet points are not converted.
+	 */
+	public static class Task extends Thread {
+		private final DBUtil dbUtil;
+		private final long firstDay;
+		private final int days;
+		private final int maxLag;
+		private final int window;
+		private final double goalKg;
+		private final Handler handler;
+		private final Callback callback;
+		private volatile TrendAnalyzer analyzer = null;
+		private volatile boolean cancelled = false;
+
+		/**
+		 * @param dbUtil
+		 *            the database to read from
+		 * @param firstDay
+		 *            the first day (since the epoch) to analyze
+		 * @param days
+		 *            the number of days to analyze
+		 * @param maxLag
+		 *            see {@link TrendAnalyzer#analyze(int, int, double)}
+		 * @param window
+		 *            see {@link TrendAnalyzer#analyze(int, int, double)}
+		 * @param goalKg
+		 *            see {@link TrendAnalyzer#analyze(int, int, double)}
+		 * @param handler
+		 *            the Handler to deliver the result on, usually one
+		 *            created on the UI thread
+		 * @param callback
+		 *            receives the result; not called if the task is cancelled,
+		 *            or if the history can't be loaded
+		 */
+		public Task(DBUtil dbUtil, long firstDay, int days, int maxLag,
+				int window, double goalKg, Handler handler, Callback callback) {
+			super("trend-analysis");
+			this.dbUtil = dbUtil;
+			this.firstDay = firstDay;
+			this.days = days;
+			this.maxLag = maxLag;
+			this.window = window;
+			this.goalKg = goalKg;
+			this.handler = handler;
+			this.callback = callback;
+		}
+
+		/** Stops the analysis; the callback will not be invoked. */
+		public void cancel() {
+			cancelled = true;
+			TrendAnalyzer a = analyzer;
+			if (a != null) {
+				a.cancel();
+			}
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			double[] intake, weight;
+			try {
+				intake = dbUtil.getDailySeries("calories", "calories",
+						firstDay, days, false);
+				weight = dbUtil.getDailySeries("weight", "weight", firstDay,
+						days, true);
+			} catch (SQLException ex) {
+				// an uncaught exception here would take the whole app down
+				Log.w(Diagnostics.TAG,
+						"could not load history for trend analysis", ex);
+				return;
+			}
+			if (cancelled) {
+				return;
+			}
+			analyzer = new TrendAnalyzer(firstDay, intake, weight);
+			if (cancelled) {
+				return;
+			}
+			final Result result;
+			try {
+				result = analyzer.analyze(maxLag, window, goalKg);
+			} catch (CancellationException ex) {
+				return;
+			}
+			handler.post(new Runnable() {
+				public void run() {
+					if (!cancelled) {
+						callback.onResult(result);
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009 Dan Morrill
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.morrildl.health;
+
+/**
+ * A mergeable summary of the distribution of a set of readings, answering
+ * percentiles and time-in-range questions. Since every metric this app
+ * records is a whole number in a small range (mmHg, kg), the sketch is simply
+ * a histogram with one bucket per integer value: its size is bounded by
+ * {@link #MAX_VALUE} no matter how many readings it holds, merging is exact,
+ * and quantiles have no error beyond the integer resolution the readings are
+ * stored at. Values outside [0, MAX_VALUE] are clamped.
+ *
+ * The serialized form is sparse, so a day's sketch is usually a few bytes.
+ */
+public class ValueSketch {
+	/** The largest value the sketch can distinguish. */
+	public static final int MAX_VALUE = 1023;
+
+	private final int[] counts = new int[MAX_VALUE + 1];
+	private long total = 0;
+
+	/** Adds a reading. */
+	public void add(int value) {
+		counts[clamp(value)]++;
+		++total;
+	}
+
+	/** Adds all of another sketch's readings to this one. */
+	public void merge(ValueSketch other) {
+		for (int v = 0; v <= MAX_VALUE; ++v) {
+			counts[v] += other.counts[v];
+		}
+		total += other.total;
+	}
+
+	/** Returns the number of readings in the sketch. */
+	public long getCount() {
+		return total;
+	}
+
+	/** Returns the mean reading, or NaN if the sketch is empty. */
+	public double getMean() {
+		if (total == 0) {
+			return Double.NaN;
+		}
+		double sum = 0;
+		for (int v = 0; v <= MAX_VALUE; ++v) {
+			sum += (double) v * counts[v];
+		}
+		return sum / total;
+	}
+
+	/**
+	 * Returns the nearest-rank quantile, e.g. 0.5 for the median or 0.9 for
+	 * the 90th percentile.
+	 *
+	 * @param q
+	 *            the quantile, between 0 and 1
+	 * @return the smallest reading with at least q of the readings at or below
+	 *         it, or -1 if the sketch is empty
+	 */
+	public int getQuantile(double q) {
+		if (total == 0) {
+			return -1;
+		}
+		long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for (int v = 0; v <= MAX_VALUE; ++v) {
+			seen += counts[v];
+			if (seen >= rank) {
+				return v;
+			}
+		}
+		return MAX_VALUE;
+	}
+
+	/**
+	 * Returns the fraction of readings between 'low' and 'high', inclusive;
+	 * e.g. time in range for blood pressure. NaN if the sketch is empty.
+	 */
+	public double getFractionInRange(int low, int high) {
+		if (total == 0) {
+			return Double.NaN;
+		}
+		long in = 0;
+		for (int v = clamp(low); v <= clamp(high); ++v) {
+			in += counts[v];
+		}
+		return (double) in / total;
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : (value > MAX_VALUE ? MAX_VALUE : value);
+	}
+
+	/**
+	 * Serializes the sketch as a run of (gap to the next non-empty value,
+	 * count) pairs, each a base-128 varint.
+	 */
+	public byte[] toBytes() {
+		byte[] buf = new byte[16];
+		int len = 0;
+		int prev = -1;
+		for (int v = 0; v <= MAX_VALUE; ++v) {
+			if (counts[v] == 0) {
+				continue;
+			}
+			if (len + 10 > buf.length) {
+				byte[] bigger = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, bigger, 0, len);
+				buf = bigger;
+			}
+			len = putVarint(buf, len, v - prev);
+			len = putVarint(buf, len, counts[v]);
+			prev = v;
+		}
+		byte[] out = new byte[len];
+		System.arraycopy(buf, 0, out, 0, len);
+		return out;
+	}
+
+	/**
+	 * Rebuilds a sketch serialized by {@link #toBytes()}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the bytes are not a serialized sketch
+	 */
+	public static ValueSketch fromBytes(byte[] bytes) {
+		ValueSketch sketch = new ValueSketch();
+		sketch.mergeBytes(bytes);
+		return sketch;
+	}
+
+	/**
+	 * Adds the readings of a sketch serialized by {@link #toBytes()} to this
+	 * one. Cheaper than deserializing and merging, since it only touches the
+	 * serialized sketch's non-empty values.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the bytes are not a serialized sketch; this sketch may
+	 *             then hold part of its readings
+	 */
+	public void mergeBytes(byte[] bytes) {
+		int[] pos = new int[] { 0 };
+		int v = -1;
+		while (pos[0] < bytes.length) {
+			int gap = getVarint(bytes, pos);
+			int count = getVarint(bytes, pos);
+			// written strictly increasing; a bad gap could even wrap around
+			if (gap <= 0 || gap > MAX_VALUE - v || count < 0) {
+				throw new IllegalArgumentException("corrupt sketch");
+			}
+			v += gap;
+			counts[v] += count;
+			total += count;
+		}
+	}
+
+	private static int putVarint(byte[] buf, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	private static int getVarint(byte[] buf, int[] pos) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (pos[0] >= buf.length) {
+				break;
+			}
+			byte b = buf[pos[0]++];
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("corrupt sketch");
+	}
+}
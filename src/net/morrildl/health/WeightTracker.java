@@ -24,7 +24,7 @@ public class WeightTracker extends DataCollectorBaseActivity {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		setContentView(R.layout.weight_tracker);
+		Diagnostics.setContentView(this, R.layout.weight_tracker);
 
 		final EditText weight = (EditText) findViewById(R.id.weight);
 		((Button) findViewById(R.id.save_button))